@@ -17,6 +17,7 @@
 package androidx.room.paging;
 
 import android.database.Cursor;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.RestrictTo;
@@ -25,6 +26,7 @@ import androidx.room.RoomDatabase;
 import androidx.room.RoomSQLiteQuery;
 import androidx.sqlite.db.SupportSQLiteQuery;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
@@ -60,6 +62,14 @@ public abstract class LimitOffsetDataSource<T> extends androidx.paging.Positiona
     private final boolean mInTransaction;
     private final AtomicBoolean mRegisteredObserver = new AtomicBoolean(false);
 
+    // The queries sort all (grouped) rows for every page, whatever the offset,
+    // so load a window of pages at once and serve subsequent pages from memory
+    private static final int PREFETCH_PAGES = 4;
+    private static final int PREFETCH_MAX = 500; // rows
+    private final Object mWindowLock = new Object();
+    private List<T> mWindow = null;
+    private int mWindowStart = 0;
+
     protected LimitOffsetDataSource(@NonNull RoomDatabase db,
             @NonNull SupportSQLiteQuery query,
             boolean inTransaction,
@@ -171,6 +181,10 @@ public abstract class LimitOffsetDataSource<T> extends androidx.paging.Positiona
                 List<T> rows = convertRows(cursor);
                 mDb.setTransactionSuccessful();
                 list = rows;
+                synchronized (mWindowLock) {
+                    mWindow = rows;
+                    mWindowStart = firstLoadPosition;
+                }
             }
         } catch (Throwable ex) {
             eu.faircode.email.Log.w(ex);
@@ -201,6 +215,39 @@ public abstract class LimitOffsetDataSource<T> extends androidx.paging.Positiona
     @SuppressWarnings("deprecation")
     @NonNull
     public List<T> loadRange(int startPosition, int loadCount) {
+        boolean back;
+        synchronized (mWindowLock) {
+            if (mWindow != null && startPosition >= mWindowStart &&
+                    startPosition + loadCount <= mWindowStart + mWindow.size()) {
+                int from = startPosition - mWindowStart;
+                return new ArrayList<>(mWindow.subList(from, from + loadCount));
+            }
+            back = (mWindow != null && startPosition < mWindowStart);
+        }
+
+        int windowSize = Math.max(loadCount, Math.min(loadCount * PREFETCH_PAGES, PREFETCH_MAX));
+        int windowStart = (back
+                ? Math.max(0, startPosition + loadCount - windowSize)
+                : startPosition);
+
+        long start = SystemClock.elapsedRealtime();
+        List<T> rows = queryRange(windowStart, windowSize);
+        eu.faircode.email.Log.i("Loaded range=" + startPosition + "/#" + loadCount +
+                " window=" + windowStart + "/#" + rows.size() +
+                " elapsed=" + (SystemClock.elapsedRealtime() - start) + " ms");
+
+        synchronized (mWindowLock) {
+            mWindow = rows;
+            mWindowStart = windowStart;
+        }
+
+        int from = Math.min(startPosition - windowStart, rows.size());
+        int to = Math.min(from + loadCount, rows.size());
+        return new ArrayList<>(rows.subList(from, to));
+    }
+
+    @NonNull
+    private List<T> queryRange(int startPosition, int loadCount) {
         final RoomSQLiteQuery sqLiteQuery = getSQLiteQuery(startPosition, loadCount);
         if (mInTransaction) {
             mDb.beginTransaction();
@@ -35,7 +35,16 @@ public class ResponseInputStream {
     private static final int incrementSlop = 16;
 
     // where we read from
-    private BufferedInputStream bin;
+    private InputStream in;
+    private byte[] buf = new byte[16 * 1024];
+    private int bufpos;
+    private int buflen;
+
+    // where to stream a matching literal to
+    private OutputStream literalOut;
+    private byte[] literalMarker;
+    private boolean literalStreamed;
+    private IOException literalError;
 
     /**
      * Constructor.
@@ -43,7 +52,44 @@ public class ResponseInputStream {
      * @param	in	the InputStream to wrap
      */
     public ResponseInputStream(InputStream in) {
-	bin = new BufferedInputStream(in, 2 * 1024);
+	this.in = in;
+    }
+
+    /**
+     * Stream the next literal preceded by the given marker,
+     * for example <code>BODY[]</code>, to the OutputStream
+     * instead of storing it in the Response.  The literal
+     * is replaced by an empty literal in the Response.
+     * Pass null to stop streaming.
+     *
+     * @param	marker	the bytes preceding the literal
+     * @param	os	the OutputStream to write the literal to
+     */
+    public void setLiteralOutput(byte[] marker, OutputStream os) {
+	literalMarker = marker;
+	literalOut = os;
+	literalStreamed = false;
+	literalError = null;
+    }
+
+    /**
+     * Was a literal streamed since the last call to setLiteralOutput?
+     *
+     * @return	true if a literal was streamed
+     */
+    public boolean isLiteralStreamed() {
+	return literalStreamed;
+    }
+
+    /**
+     * Get the error writing the streamed literal, if any.
+     * The literal is always read completely, so that the
+     * connection remains usable.
+     *
+     * @return	the IOException or null
+     */
+    public IOException getLiteralError() {
+	return literalError;
     }
 
     /**
@@ -70,29 +116,36 @@ public class ResponseInputStream {
 	byte[] buffer = ba.getBytes();
 	int idx = 0;
 	for (;;) {	// read until CRLF with no preceeding literal
-	    // XXX - b needs to be an int, to handle bytes with value 0xff
-	    int b = 0;
 	    boolean gotCRLF=false;
 
 	    // Read a CRLF terminated line from the InputStream
-	    while (!gotCRLF &&
-		   ((b =  bin.read()) != -1)) {
-		if (b == '\n') {
-		    if ((idx > 0) && buffer[idx-1] == '\r')
-			gotCRLF = true;
-		}
-		if (idx >= buffer.length) {
+	    while (!gotCRLF) {
+		if (bufpos >= buflen && fill() == -1)
+		    throw new IOException("Connection dropped by server?");
+
+		// copy up to and including the next LF in one go
+		int end = bufpos;
+		while (end < buflen && buf[end] != '\n')
+		    end++;
+		boolean gotLF = (end < buflen);
+		if (gotLF)
+		    end++;
+
+		int n = end - bufpos;
+		while (idx + n > buffer.length) {
 		    int incr = buffer.length;
 		    if (incr > maxIncrement)
 			incr = maxIncrement;
 		    ba.grow(incr);
 		    buffer = ba.getBytes();
 		}
-		buffer[idx++] = (byte)b;
-	    }
+		System.arraycopy(buf, bufpos, buffer, idx, n);
+		bufpos = end;
+		idx += n;
 
-	    if (b == -1)
-		throw new IOException("Connection dropped by server?");
+		if (gotLF && idx > 1 && buffer[idx-2] == '\r')
+		    gotCRLF = true;
+	    }
 
 	    // Now lets check for literals : {<digits>}CRLF
 	    // Note: index needs to >= 5 for the above sequence to occur
@@ -116,6 +169,20 @@ public class ResponseInputStream {
 		break;
 	    }
 
+	    if (count > 0 && literalOut != null && isMarked(buffer, i)) {
+		// Stream the literal and leave an empty literal behind
+		OutputStream os = literalOut;
+		literalOut = null;
+		literalStreamed = true;
+		writeLiteral(os, count);
+		buffer[i+1] = '0';
+		buffer[i+2] = '}';
+		buffer[i+3] = '\r';
+		buffer[i+4] = '\n';
+		idx = i + 5;
+		continue;
+	    }
+
 	    // Now read 'count' bytes. (Note: count could be 0)
 	    if (count > 0) {
 		int avail = buffer.length - idx; // available space in buffer
@@ -132,7 +199,7 @@ public class ResponseInputStream {
 		 */
 		int actual;
 		while (count > 0) {
-		    actual = bin.read(buffer, idx, count);
+		    actual = read(buffer, idx, count);
 		    if (actual == -1)
 			throw new IOException("Connection dropped by server?");
 		    count -= actual;
@@ -145,6 +212,81 @@ public class ResponseInputStream {
 	return ba;
     }
 
+    /**
+     * Does the marker immediately precede the literal at index i,
+     * optionally separated by a space?
+     */
+    private boolean isMarked(byte[] buffer, int i) {
+	byte[] marker = literalMarker;
+	if (marker == null)
+	    return false;
+	int end = (i > 0 && buffer[i-1] == ' ' ? i - 1 : i);
+	int start = end - marker.length;
+	if (start < 0)
+	    return false;
+	for (int k = 0; k < marker.length; k++) {
+	    int a = buffer[start + k];
+	    int b = marker[k];
+	    if (a >= 'a' && a <= 'z')
+		a -= 'a' - 'A';
+	    if (b >= 'a' && b <= 'z')
+		b -= 'a' - 'A';
+	    if (a != b)
+		return false;
+	}
+	return true;
+    }
+
+    /**
+     * Copy 'count' bytes to the OutputStream in bulk.
+     * Write errors are remembered and the rest of the literal
+     * is skipped, so that the connection stays in sync.
+     */
+    private void writeLiteral(OutputStream os, int count) throws IOException {
+	while (count > 0) {
+	    if (bufpos >= buflen) {
+		bufpos = 0;
+		buflen = 0;
+		int actual = in.read(buf, 0, Math.min(count, buf.length));
+		if (actual == -1)
+		    throw new IOException("Connection dropped by server?");
+		buflen = actual;
+	    }
+	    int n = Math.min(count, buflen - bufpos);
+	    if (literalError == null)
+		try {
+		    os.write(buf, bufpos, n);
+		} catch (IOException ex) {
+		    literalError = ex;
+		}
+	    bufpos += n;
+	    count -= n;
+	}
+    }
+
+    private int read(byte[] b, int off, int len) throws IOException {
+	if (bufpos >= buflen) {
+	    // large reads bypass the buffer
+	    if (len >= buf.length)
+		return in.read(b, off, len);
+	    if (fill() == -1)
+		return -1;
+	}
+	int n = Math.min(len, buflen - bufpos);
+	System.arraycopy(buf, bufpos, b, off, n);
+	bufpos += n;
+	return n;
+    }
+
+    private int fill() throws IOException {
+	bufpos = 0;
+	buflen = 0;
+	int actual = in.read(buf, 0, buf.length);
+	if (actual > 0)
+	    buflen = actual;
+	return actual;
+    }
+
     /**
      * How much buffered data do we have?
      *
@@ -153,6 +295,6 @@ public class ResponseInputStream {
      * @since	JavaMail 1.5.4
      */
     public int available() throws IOException {
-	return bin.available();
+	return (buflen - bufpos) + in.available();
     }
 }
@@ -51,6 +51,9 @@ public class IMAPBodyPart extends MimeBodyPart implements ReadableMime {
     private static final boolean decodeFileName =
 	PropUtil.getBooleanSystemProperty("mail.mime.decodefilename", false);
 
+    // without partial fetch, larger parts are streamed to a temporary file
+    private static final int streamThreshold = 256 * 1024;
+
     protected IMAPBodyPart(BODYSTRUCTURE bs, String sid, IMAPMessage message) {
 	super();
 	this.bs = bs;
@@ -181,13 +184,20 @@ public class IMAPBodyPart extends MimeBodyPart implements ReadableMime {
 		// Else, vanila IMAP4, no partial fetch 
 
 		int seqnum = message.getSequenceNumber();
-		BODY b;
-		if (pk)
-		    b = p.peekBody(seqnum, sectionId);
-		else
-		    b = p.fetchBody(seqnum, sectionId);
-		if (b != null)
-		    is = b.getByteArrayInputStream();
+
+		if (p.isREV1() && (bs.size > streamThreshold ||
+			message.ignoreBodyStructureSize()))
+		    // Don't hold large parts, like attachments, on the heap
+		    is = getStreamedContent(p, seqnum, pk);
+		else {
+		    BODY b;
+		    if (pk)
+			b = p.peekBody(seqnum, sectionId);
+		    else
+			b = p.fetchBody(seqnum, sectionId);
+		    if (b != null)
+			is = b.getByteArrayInputStream();
+		}
 	    } catch (ConnectionException cex) {
 		throw new FolderClosedException(
 			message.getFolder(), cex.getMessage());
@@ -207,6 +217,38 @@ public class IMAPBodyPart extends MimeBodyPart implements ReadableMime {
 	return is;
     }
 
+    /**
+     * Stream the body part to a temporary file while it is read from
+     * the server and return a stream reading the file.  The file is
+     * deleted right away, so it is removed when the stream is closed.
+     */
+    private InputStream getStreamedContent(IMAPProtocol p, int seqnum,
+		boolean pk) throws ProtocolException, MessagingException {
+	File file = null;
+	try {
+	    file = File.createTempFile("imap", ".part");
+	    boolean ok;
+	    OutputStream os = new BufferedOutputStream(
+					new FileOutputStream(file));
+	    try {
+		ok = p.fetchBody(seqnum, sectionId, pk, os);
+	    } finally {
+		os.close();
+	    }
+	    if (!ok)
+		return null;
+	    InputStream is = new FileInputStream(file);
+	    file.delete();
+	    file = null;
+	    return is;
+	} catch (IOException ex) {
+	    throw new MessagingException("Failed to stream body part", ex);
+	} finally {
+	    if (file != null)
+		file.delete();
+	}
+    }
+
     /**
      * Return the MIME format stream of headers for this body part.
      */
@@ -912,6 +912,28 @@ public class IMAPMessage extends MimeMessage implements ReadableMime {
 	    super.writeTo(os);
 	    return;
 	}
+	if (!(this instanceof IMAPNestedMessage) && getFetchBlockSize() == -1) {
+	    // Stream the body to prevent buffering it as a whole
+	    boolean pk = getPeek();	// get before acquiring message cache lock
+	    synchronized(getMessageCacheLock()) {
+		try {
+		    IMAPProtocol p = getProtocol();
+
+		    checkExpunged(); // insure this message is not expunged
+
+		    if (p.isREV1()) {
+			if (!p.fetchBody(getSequenceNumber(), sectionId, pk, os))
+			    forceCheckExpunged();	// may throw MessageRemovedException
+			return;
+		    }
+		} catch (ConnectionException cex) {
+		    throw new FolderClosedException(folder, cex.getMessage());
+		} catch (ProtocolException pex) {
+		    forceCheckExpunged();
+		    throw new MessagingException(pex.getMessage(), pex);
+		}
+	    }
+	}
 	InputStream is = getMimeStream();
 	if (this instanceof IMAPNestedMessage) {
 		String encoding = getEncoding();
@@ -1756,6 +1756,50 @@ public class IMAPProtocol extends Protocol {
 	return fetchSectionBody(msgno, section, body);
     }
 
+    /**
+     * FETCH of given BODY section, writing the data to the OutputStream
+     * while it is read from the server, instead of buffering the
+     * whole section in memory.
+     *
+     * @param	msgno	the message number
+     * @param	section	the body section
+     * @param	peek	don't set the SEEN flag
+     * @param	os	the OutputStream to write the data to
+     * @return		true if the section was fetched
+     * @exception	ProtocolException	for protocol failures
+     * @exception	IOException	for errors writing the data
+     */
+    public boolean fetchBody(int msgno, String section, boolean peek,
+		OutputStream os) throws ProtocolException, IOException {
+	if (section == null)
+	    section = "";
+	String body = (peek ? "BODY.PEEK[" : "BODY[") + section + "]";
+
+	ResponseInputStream input = getInputStream();
+	BODY b;
+	boolean streamed;
+	IOException error;
+	input.setLiteralOutput(ASCIIUtility.getBytes("BODY[" + section + "]"), os);
+	try {
+	    b = fetchSectionBody(msgno, section, body);
+	} finally {
+	    streamed = input.isLiteralStreamed();
+	    error = input.getLiteralError();
+	    input.setLiteralOutput(null, null);
+	}
+
+	if (error != null)
+	    throw error;
+	if (b == null)
+	    return false;
+	if (!streamed) {
+	    ByteArray data = b.getByteArray();
+	    if (data != null)
+		os.write(data.getBytes(), data.getStart(), data.getCount());
+	}
+	return true;
+    }
+
     /**
      * Partial FETCH of given BODY section, without setting SEEN flag.
      *
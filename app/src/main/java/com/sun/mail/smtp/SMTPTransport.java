@@ -117,6 +117,9 @@ public class SMTPTransport extends Transport {
     private boolean requireStartTLS;	// require STARTTLS command
     private boolean useRset;		// use RSET instead of NOOP
     private boolean noopStrict = true;	// NOOP must return 250 for success
+    private boolean usePipelining;	// use PIPELINING if supported
+    private String pipelinedFrom;	// MAIL FROM awaiting response
+    private String pipelinedMailFrom;
 
     private MailLogger logger;		// debug logger
     private MailLogger traceLogger;	// protocol trace logger
@@ -215,6 +218,10 @@ public class SMTPTransport extends Transport {
 	noopStrict = PropUtil.getBooleanProperty(props,
 				"mail." + name + ".noop.strict", true);
 
+	// mail.smtp.pipelining enables RFC 2920 pipelining of the envelope
+	usePipelining = PropUtil.getBooleanProperty(props,
+				"mail." + name + ".pipelining", false);
+
 	// check if SASL is enabled
 	enableSASL = PropUtil.getBooleanProperty(props,
 	    "mail." + name + ".sasl.enable", false);
@@ -1795,6 +1802,9 @@ public class SMTPTransport extends Transport {
      * @since JavaMail 1.4.1
      */
     protected void mailFrom() throws MessagingException {
+	pipelinedFrom = null;
+	pipelinedMailFrom = null;
+
 	String from = null;
 	if (message instanceof SMTPMessage)
 	    from = ((SMTPMessage)message).getEnvelopeFrom();
@@ -1869,25 +1879,70 @@ public class SMTPTransport extends Transport {
 	if (ext != null && ext.length() > 0)
 	    cmd += " " + ext;
 
+	if (isPipelining()) {
+	    // the response is read after the RCPT TO commands have been sent
+	    sendCommand(toBytes(cmd), false);
+	    pipelinedFrom = from;
+	    pipelinedMailFrom = cmd;
+	    return;
+	}
+
 	try {
 	    issueSendCommand(cmd, 250);
 	} catch (SMTPSendFailedException ex) {
-	    int retCode = ex.getReturnCode();
-	    switch (retCode) {
-	    case 550: case 553: case 503: case 551: case 501:
-		// given address is invalid
-		try {
-		    ex.setNextException(new SMTPSenderFailedException(
-			new InternetAddress(from), cmd,
-			retCode, ex.getMessage()));
-		} catch (AddressException aex) {
-		    // oh well...
-		}
-		break;
-	    default:
-		break;
+	    throw senderFailed(ex, from, cmd);
+	}
+    }
+
+    private SMTPSendFailedException senderFailed(SMTPSendFailedException ex,
+				String from, String cmd) {
+	int retCode = ex.getReturnCode();
+	switch (retCode) {
+	case 550: case 553: case 503: case 551: case 501:
+	    // given address is invalid
+	    try {
+		ex.setNextException(new SMTPSenderFailedException(
+		    new InternetAddress(from), cmd,
+		    retCode, ex.getMessage()));
+	    } catch (AddressException aex) {
+		// oh well...
 	    }
-	    throw ex;
+	    break;
+	default:
+	    break;
+	}
+	return ex;
+    }
+
+    /**
+     * Is RFC 2920 command pipelining enabled and supported by the server?
+     */
+    private boolean isPipelining() {
+	return (usePipelining && supportsExtension("PIPELINING"));
+    }
+
+    /**
+     * Read the response to a pipelined <code>MAIL FROM:</code> command.
+     * On failure the responses to the pipelined <code>RCPT TO:</code>
+     * commands that follow are read and discarded.
+     */
+    private void readPipelinedMailFrom(int rcpts) throws MessagingException {
+	String from = pipelinedFrom;
+	String cmd = pipelinedMailFrom;
+	pipelinedFrom = null;
+	pipelinedMailFrom = null;
+
+	int ret = readServerResponse();
+	if (ret != 250) {
+	    String _lsr = lastServerResponse;
+	    int _lrc = lastReturnCode;
+	    for (int i = 0; i < rcpts; i++)
+		if (readServerResponse() == -1)
+		    break;
+	    lastServerResponse = _lsr;
+	    lastReturnCode = _lrc;
+	    validUnsentAddr = addresses;	// as before rcptTo
+	    throw senderFailed(sendFailed(cmd, ret), from, cmd);
 	}
     }
 
@@ -1943,16 +1998,31 @@ public class SMTPTransport extends Transport {
 		dsn = true;
 	}
 
+	String[] cmds = new String[addresses.length];
+	for (int i = 0; i < addresses.length; i++) {
+	    InternetAddress ia = (InternetAddress)addresses[i];
+	    cmds[i] = "RCPT TO:" + normalizeAddress(ia.getAddress());
+	    if (dsn)
+		cmds[i] += " NOTIFY=" + notify;
+	}
+
+	// RFC 2920: send all addresses at once, read the responses in order
+	boolean pipelined = (pipelinedMailFrom != null);
+	if (pipelined) {
+	    for (int i = 0; i < cmds.length; i++)
+		sendCommand(toBytes(cmds[i]), i == cmds.length - 1);
+	    readPipelinedMailFrom(cmds.length);
+	}
+
 	// try the addresses one at a time
 	for (int i = 0; i < addresses.length; i++) {
 
 	    sfex = null;
 	    InternetAddress ia = (InternetAddress)addresses[i];
-	    String cmd = "RCPT TO:" + normalizeAddress(ia.getAddress());
-	    if (dsn)
-		cmd += " NOTIFY=" + notify;
+	    String cmd = cmds[i];
 	    // send the addresses to the SMTP server
-	    sendCommand(cmd);
+	    if (!pipelined)
+		sendCommand(cmd);
 	    // check the server's response for address validity
 	    retCode = readServerResponse();
 	    switch (retCode) {
@@ -2016,6 +2086,10 @@ public class SMTPTransport extends Transport {
 			    ", with response: " + lastServerResponse);
 		    String _lsr = lastServerResponse; // else rset will nuke it
 		    int _lrc = lastReturnCode;
+		    if (pipelined)	// skip responses to pending addresses
+			for (int j = i + 1; j < addresses.length; j++)
+			    if (readServerResponse() == -1)
+				break;
 		    if (serverSocket != null)	// hasn't already been closed
 			issueCommand("RSET", -1);
 		    lastServerResponse = _lsr;	// restore, for get
@@ -2415,30 +2489,38 @@ public class SMTPTransport extends Transport {
 	// if server responded with an unexpected return code,
 	// throw the exception, notifying the client of the response
 	int ret;
-	if ((ret = readServerResponse()) != expect) {
-	    // assume message was not sent to anyone,
-	    // combine valid sent & unsent addresses
-	    int vsl = validSentAddr == null ? 0 : validSentAddr.length;
-	    int vul = validUnsentAddr == null ? 0 : validUnsentAddr.length;
-	    Address[] valid = new Address[vsl + vul];
-	    if (vsl > 0)
-		System.arraycopy(validSentAddr, 0, valid, 0, vsl);
-	    if (vul > 0)
-		System.arraycopy(validUnsentAddr, 0, valid, vsl, vul);
-	    validSentAddr = null;
-	    validUnsentAddr = valid;
-	    if (logger.isLoggable(Level.FINE))
-		logger.fine("got response code " + ret +
-		    ", with response: " + lastServerResponse);
-	    String _lsr = lastServerResponse; // else rset will nuke it
-	    int _lrc = lastReturnCode;
-	    if (serverSocket != null)	// hasn't already been closed
-		issueCommand("RSET", -1);
-	    lastServerResponse = _lsr;	// restore, for get
-	    lastReturnCode = _lrc;
-	    throw new SMTPSendFailedException(cmd, ret, lastServerResponse,
-			exception, validSentAddr, validUnsentAddr, invalidAddr);
-	}
+	if ((ret = readServerResponse()) != expect)
+	    throw sendFailed(cmd, ret);
+    }
+
+    /**
+     * Reset the connection after a failed command that's part of
+     * sending a message and return the exception to throw.
+     */
+    private SMTPSendFailedException sendFailed(String cmd, int ret)
+				throws MessagingException {
+	// assume message was not sent to anyone,
+	// combine valid sent & unsent addresses
+	int vsl = validSentAddr == null ? 0 : validSentAddr.length;
+	int vul = validUnsentAddr == null ? 0 : validUnsentAddr.length;
+	Address[] valid = new Address[vsl + vul];
+	if (vsl > 0)
+	    System.arraycopy(validSentAddr, 0, valid, 0, vsl);
+	if (vul > 0)
+	    System.arraycopy(validUnsentAddr, 0, valid, vsl, vul);
+	validSentAddr = null;
+	validUnsentAddr = valid;
+	if (logger.isLoggable(Level.FINE))
+	    logger.fine("got response code " + ret +
+	        ", with response: " + lastServerResponse);
+	String _lsr = lastServerResponse; // else rset will nuke it
+	int _lrc = lastReturnCode;
+	if (serverSocket != null)	// hasn't already been closed
+	    issueCommand("RSET", -1);
+	lastServerResponse = _lsr;	// restore, for get
+	lastReturnCode = _lrc;
+	return new SMTPSendFailedException(cmd, ret, lastServerResponse,
+		    exception, validSentAddr, validUnsentAddr, invalidAddr);
     }
 
     /**
@@ -2484,6 +2566,11 @@ public class SMTPTransport extends Transport {
     }
 
     private void sendCommand(byte[] cmdBytes) throws MessagingException {
+	sendCommand(cmdBytes, true);
+    }
+
+    private void sendCommand(byte[] cmdBytes, boolean flush)
+				throws MessagingException {
 	assert Thread.holdsLock(this);
 	//if (logger.isLoggable(Level.FINE))
 	    //logger.fine("SENT: " + new String(cmdBytes, 0));
@@ -2491,7 +2578,8 @@ public class SMTPTransport extends Transport {
         try {
 	    serverOutput.write(cmdBytes);
 	    serverOutput.write(CRLF);
-	    serverOutput.flush();
+	    if (flush)
+		serverOutput.flush();
 	} catch (IOException ex) {
 	    throw new MessagingException("Can't send command to SMTP host", ex);
 	}
@@ -819,7 +819,7 @@ public class ActivityView extends ActivityBilling implements FragmentManager.OnB
             public Boolean call() {
                 if (BuildConfig.DEBUG)
                     try {
-                        DnsBlockList.clearCache();
+                        DnsBlockList.clearCache(ActivityView.this);
                         ContactInfo.clearCache(ActivityView.this);
                         ToastEx.makeText(ActivityView.this, R.string.title_completed, Toast.LENGTH_LONG).show();
                     } catch (Throwable ex) {
@@ -26,6 +26,7 @@ import android.animation.Animator;
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.app.Dialog;
 import android.app.Notification;
 import android.app.NotificationChannel;
@@ -40,6 +41,7 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.ColorStateList;
+import android.content.res.Configuration;
 import android.database.Cursor;
 import android.graphics.Color;
 import android.graphics.Paint;
@@ -75,6 +77,7 @@ import android.text.style.RelativeSizeSpan;
 import android.text.style.StyleSpan;
 import android.text.style.URLSpan;
 import android.text.util.Linkify;
+import android.util.LruCache;
 import android.util.Pair;
 import android.util.TypedValue;
 import android.view.GestureDetector;
@@ -147,7 +150,6 @@ import com.google.android.material.snackbar.Snackbar;
 
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
-import org.w3c.dom.css.CSSStyleSheet;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
@@ -318,6 +320,16 @@ public class AdapterMessage extends RecyclerView.Adapter<AdapterMessage.ViewHold
 
     private static final int MAX_RECIPIENTS_COMPACT = 3;
     private static final int MAX_RECIPIENTS_NORMAL = 7;
+    private static final int BODY_CACHE_FRACTION = 32; // of memory class
+    private static final int BODY_DOM_FACTOR = 8; // estimated parsed document size per source byte
+
+    private static LruCache<String, CachedBody> bodyCache = null;
+
+    private static final String[] BODY_CACHE_PREFS = new String[]{
+            "theme", "background_color", "text_color", "text_size", "text_font", "text_align",
+            "display_hidden", "disable_tracking", "parse_classes", "inline_images",
+            "text_separators", "image_placeholders", "download_plain", "disconnect_images"
+    };
 
     public class ViewHolder extends RecyclerView.ViewHolder implements
             View.OnClickListener,
@@ -2686,77 +2698,93 @@ public class AdapterMessage extends RecyclerView.Adapter<AdapterMessage.ViewHold
                         signed_data = false;
                     args.putBoolean("signed_data", signed_data);
 
-                    Document document = JsoupEx.parse(file);
-                    HtmlHelper.cleanup(document);
+                    String key = (show_full ? null : getBodyKey(context, message, file, attachments, show_images));
+                    CachedBody cached = (key == null ? null : getBodyCache(context).get(key));
 
-                    // Add embedded messages
-                    for (EntityAttachment attachment : attachments)
-                        if (attachment.available && "message/rfc822".equals(attachment.getMimeType()))
-                            try (FileInputStream fis = new FileInputStream(attachment.getFile(context))) {
-                                Properties props = MessageHelper.getSessionProperties();
-                                Session isession = Session.getInstance(props, null);
-                                MimeMessage imessage = new MimeMessage(isession, fis);
-                                MessageHelper helper = new MessageHelper(imessage, context);
-                                MessageHelper.MessageParts parts = helper.getMessageParts();
+                    Document document;
+                    Document original = null;
+                    boolean iencrypted;
+                    boolean has_images;
+                    if (cached == null) {
+                        document = JsoupEx.parse(file);
+                        if (show_full && debug)
+                            original = document.clone();
+                        HtmlHelper.cleanup(document);
 
-                                EntityMessage embedded = new EntityMessage();
-                                embedded.from = helper.getFrom();
-                                embedded.to = helper.getTo();
-                                embedded.cc = helper.getCc();
-                                embedded.received = helper.getReceivedHeader();
-                                if (embedded.received == null)
-                                    embedded.received = helper.getSent();
-                                embedded.subject = helper.getSubject();
+                        // Add embedded messages
+                        for (EntityAttachment attachment : attachments)
+                            if (attachment.available && "message/rfc822".equals(attachment.getMimeType()))
+                                try (FileInputStream fis = new FileInputStream(attachment.getFile(context))) {
+                                    Properties props = MessageHelper.getSessionProperties();
+                                    Session isession = Session.getInstance(props, null);
+                                    MimeMessage imessage = new MimeMessage(isession, fis);
+                                    MessageHelper helper = new MessageHelper(imessage, context);
+                                    MessageHelper.MessageParts parts = helper.getMessageParts();
 
-                                String html = parts.getHtml(context, download_plain);
-                                Document d = (html == null ? Document.createShell("") : JsoupEx.parse(html));
+                                    EntityMessage embedded = new EntityMessage();
+                                    embedded.from = helper.getFrom();
+                                    embedded.to = helper.getTo();
+                                    embedded.cc = helper.getCc();
+                                    embedded.received = helper.getReceivedHeader();
+                                    if (embedded.received == null)
+                                        embedded.received = helper.getSent();
+                                    embedded.subject = helper.getSubject();
 
-                                Element div = document.createElement("div");
-                                div.appendElement("hr");
+                                    String html = parts.getHtml(context, download_plain);
+                                    Document d = (html == null ? Document.createShell("") : JsoupEx.parse(html));
 
-                                Element h = document.createElement("p");
-                                h.attr("style", "text-align: center;");
+                                    Element div = document.createElement("div");
+                                    div.appendElement("hr");
 
-                                Element em = document.createElement("em");
-                                em.text(TextUtils.isEmpty(attachment.name)
-                                        ? context.getString(R.string.title_attachment_eml) : attachment.name);
-                                h.appendChild(em);
+                                    Element h = document.createElement("p");
+                                    h.attr("style", "text-align: center;");
 
-                                div.appendChild(h);
+                                    Element em = document.createElement("em");
+                                    em.text(TextUtils.isEmpty(attachment.name)
+                                            ? context.getString(R.string.title_attachment_eml) : attachment.name);
+                                    h.appendChild(em);
 
-                                Element p = embedded.getReplyHeader(context, document, false, true);
-                                div.appendChild(p);
+                                    div.appendChild(h);
 
-                                div.appendChild(d.body().tagName("p"));
+                                    Element p = embedded.getReplyHeader(context, document, false, true);
+                                    div.appendChild(p);
 
-                                document.body().appendChild(div);
-                            } catch (Throwable ex) {
-                                Log.e(ex);
-                            }
+                                    div.appendChild(d.body().tagName("p"));
+
+                                    document.body().appendChild(div);
+                                } catch (Throwable ex) {
+                                    Log.e(ex);
+                                }
 
-                    HtmlHelper.removeRelativeLinks(document);
+                        HtmlHelper.removeRelativeLinks(document);
 
-                    // Check for inline encryption
-                    boolean iencrypted = HtmlHelper.contains(document, new String[]{
-                            Helper.PGP_BEGIN_MESSAGE,
-                            Helper.PGP_END_MESSAGE
-                    });
-                    args.putBoolean("inline_encrypted", iencrypted);
+                        // Check for inline encryption
+                        iencrypted = HtmlHelper.contains(document, new String[]{
+                                Helper.PGP_BEGIN_MESSAGE,
+                                Helper.PGP_END_MESSAGE
+                        });
 
-                    // Check for images
-                    boolean has_images = false;
-                    for (Element img : document.select("img")) {
-                        if (inline) {
-                            String src = img.attr("src");
-                            if (!src.startsWith("cid:")) {
+                        // Check for images
+                        has_images = false;
+                        for (Element img : document.select("img")) {
+                            if (inline) {
+                                String src = img.attr("src");
+                                if (!src.startsWith("cid:")) {
+                                    has_images = true;
+                                    break;
+                                }
+                            } else {
                                 has_images = true;
                                 break;
                             }
-                        } else {
-                            has_images = true;
-                            break;
                         }
+                    } else {
+                        document = cached.document.clone();
+                        iencrypted = cached.inline_encrypted;
+                        has_images = cached.has_images;
                     }
+
+                    args.putBoolean("inline_encrypted", iencrypted);
                     args.putBoolean("has_images", has_images);
 
                     // Download inline images
@@ -2836,11 +2864,10 @@ public class AdapterMessage extends RecyclerView.Adapter<AdapterMessage.ViewHold
                         if (disable_tracking)
                             HtmlHelper.removeTrackingPixels(context, document);
 
-                        if (debug) {
-                            Document format = JsoupEx.parse(file);
-                            format.outputSettings().prettyPrint(true).outline(true).indentAmount(1);
+                        if (original != null) {
+                            original.outputSettings().prettyPrint(true).outline(true).indentAmount(1);
                             Element pre = document.createElement("pre");
-                            pre.text(format.html());
+                            pre.text(original.html());
                             document.body().appendChild(pre);
                         }
 
@@ -2849,10 +2876,14 @@ public class AdapterMessage extends RecyclerView.Adapter<AdapterMessage.ViewHold
 
                         return document.html();
                     } else {
-                        // Cleanup message
-                        document = HtmlHelper.sanitizeView(context, document, show_images);
+                        if (cached == null) {
+                            // Cleanup message
+                            document = HtmlHelper.sanitizeView(context, document, show_images);
 
-                        HtmlHelper.autoLink(document);
+                            HtmlHelper.autoLink(document);
+
+                            putBodyCache(context, key, document, file.length(), iencrypted, has_images);
+                        }
 
                         if (message.ui_found && found && !TextUtils.isEmpty(searched))
                             HtmlHelper.highlightSearched(context, document, searched);
@@ -6394,8 +6425,7 @@ public class AdapterMessage extends RecyclerView.Adapter<AdapterMessage.ViewHold
                             HtmlHelper.overrideWidth(d);
                     }
 
-                    List<CSSStyleSheet> sheets =
-                            HtmlHelper.parseStyles(d.head().select("style"));
+                    HtmlHelper.StyleIndex sheets = HtmlHelper.indexStyles(context, d.head().select("style"));
                     for (Element element : d.select("*")) {
                         String computed = HtmlHelper.processStyles(
                                 element.tagName(),
@@ -7530,6 +7560,75 @@ public class AdapterMessage extends RecyclerView.Adapter<AdapterMessage.ViewHold
         ((InternetAddress) addresses[0]).setAddress(email);
     }
 
+    private static String getBodyKey(Context context, EntityMessage message, File file, List<EntityAttachment> attachments, boolean show_images) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        Map<String, ?> values = prefs.getAll();
+        Configuration config = context.getResources().getConfiguration();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(message.id)
+                .append(':').append(file.lastModified())
+                .append(':').append(file.length())
+                .append(':').append(show_images)
+                .append(':').append(config.uiMode)
+                .append(':').append(config.fontScale)
+                .append(':').append(config.densityDpi)
+                .append(':').append(Locale.getDefault());
+        for (String key : BODY_CACHE_PREFS)
+            sb.append(':').append(values.get(key));
+        for (EntityAttachment attachment : attachments)
+            sb.append(':').append(attachment.id).append(attachment.available ? '+' : '-');
+        return sb.toString();
+    }
+
+    private static LruCache<String, CachedBody> getBodyCache(Context context) {
+        synchronized (AdapterMessage.class) {
+            if (bodyCache == null) {
+                ActivityManager am = Helper.getSystemService(context, ActivityManager.class);
+                int size = am.getMemoryClass() * 1024 * 1024 / BODY_CACHE_FRACTION;
+                Log.i("Body cache size=" + Helper.humanReadableByteCount(size));
+                bodyCache = new LruCache<String, CachedBody>(size) {
+                    @Override
+                    protected int sizeOf(String key, CachedBody value) {
+                        return value.size;
+                    }
+                };
+            }
+            return bodyCache;
+        }
+    }
+
+    private static void putBodyCache(Context context, String key, Document document, long length,
+                                     boolean inline_encrypted, boolean has_images) {
+        // Cloning a large document on every hit would cause memory spikes
+        LruCache<String, CachedBody> cache = getBodyCache(context);
+        long size = length * BODY_DOM_FACTOR;
+        if (size > cache.maxSize() / 4)
+            return;
+        cache.put(key, new CachedBody(document.clone(), (int) size, inline_encrypted, has_images));
+    }
+
+    static void clearBodyCache() {
+        synchronized (AdapterMessage.class) {
+            if (bodyCache != null)
+                bodyCache.evictAll();
+        }
+    }
+
+    private static class CachedBody {
+        private final Document document;
+        private final int size;
+        private final boolean inline_encrypted;
+        private final boolean has_images;
+
+        CachedBody(Document document, int size, boolean inline_encrypted, boolean has_images) {
+            this.document = document;
+            this.size = Math.max(1, size);
+            this.inline_encrypted = inline_encrypted;
+            this.has_images = has_images;
+        }
+    }
+
     PagedList<TupleMessageEx> getCurrentList() {
         return differ.getCurrentList();
     }
@@ -174,6 +174,8 @@ public class ApplicationEx extends Application
         Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
             @Override
             public void uncaughtException(@NonNull Thread thread, @NonNull Throwable ex) {
+                EntityLog.flush(ApplicationEx.this);
+
                 if (!crash_reports && Log.isOwnFault(ex)) {
                     Log.e(ex);
 
@@ -282,7 +284,7 @@ public class ApplicationEx extends Application
                     break;
                 case "check_blocklist":
                 case "use_blocklist":
-                    DnsBlockList.clearCache();
+                    DnsBlockList.clearCache(this);
                     break;
                 case "watchdog":
                     ServiceSynchronize.scheduleWatchdog(this);
@@ -329,6 +331,9 @@ public class ApplicationEx extends Application
         Log.breadcrumb("low", crumb);
 
         ContactInfo.clearCache(this, false);
+        ImageHelper.clearCache(this, false);
+        HtmlHelper.clearStyleCache();
+        AdapterMessage.clearBodyCache();
 
         super.onLowMemory();
     }
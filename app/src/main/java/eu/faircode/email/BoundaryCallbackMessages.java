@@ -57,9 +57,11 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
-import javax.mail.Address;
 import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Folder;
@@ -99,7 +101,12 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
     private State state;
     private final ExecutorService executor = Helper.getBackgroundExecutor(1, "boundary");
 
+    private static final ExecutorService executorSearch =
+            Helper.getBackgroundExecutor(Runtime.getRuntime().availableProcessors(), "search");
+
     private static final int SEARCH_LIMIT_DEVICE = 1000;
+    private static final int SEARCH_LIMIT_FTS = 500;
+    private static final int SEARCH_PARALLEL_BATCH = 50;
     private static final int SEARCH_LIMIT_SERVER = 250;
 
     interface IBoundaryCallbackMessages {
@@ -252,7 +259,7 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
         });
     }
 
-    private int load_device(State state) {
+    private int load_device(State state) throws InterruptedException, ExecutionException {
         DB db = DB.getInstance(context);
 
         Log.i("Boundary device" +
@@ -291,105 +298,59 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
                         " ids=" + state.ids.size());
             }
 
-            List<Long> excluded = Helper.fromLongArray(exclude);
-
             try {
                 db.beginTransaction();
 
-                for (; state.index < state.ids.size() && found < pageSize && !state.destroyed; state.index++) {
-                    long id = state.ids.get(state.index);
-                    EntityMessage message = db.message().getMessage(id);
-                    if (message == null)
-                        continue;
-
-                    if (criteria.with_unseen) {
-                        if (message.ui_seen)
+                while (state.index < state.ids.size() && found < pageSize && !state.destroyed) {
+                    // Evaluate the criteria for a chunk of matched ids at once
+                    List<Long> chunk = state.ids.subList(state.index,
+                            Math.min(state.index + SEARCH_LIMIT_FTS, state.ids.size()));
+                    List<TupleMatch> matches = db.message().matchMessagesFts(
+                            chunk, exclude,
+                            criteria.query == null ? null : "%" + criteria.query + "%",
+                            criteria.in_senders,
+                            criteria.in_recipients,
+                            criteria.in_subject,
+                            criteria.in_keywords,
+                            criteria.in_notes,
+                            criteria.with_unseen,
+                            criteria.with_flagged,
+                            criteria.with_hidden,
+                            criteria.with_encrypted,
+                            criteria.with_attachments);
+
+                    Map<Long, TupleMatch> byId = new HashMap<>();
+                    for (TupleMatch match : matches)
+                        byId.put(match.id, match);
+
+                    if (Log.isInfoEnabled())
+                        Log.i("Boundary FTS chunk index=" + state.index +
+                                " size=" + chunk.size() + " matches=" + matches.size());
+
+                    // Keep the FTS order
+                    for (int i = 0; i < chunk.size() && found < pageSize && !state.destroyed; i++) {
+                        long id = chunk.get(i);
+                        state.index++;
+
+                        TupleMatch match = byId.get(id);
+                        if (match == null)
                             continue;
-                    }
 
-                    if (criteria.with_flagged) {
-                        if (!message.ui_flagged)
-                            continue;
-                    }
+                        boolean matched = (match.matched != null && match.matched);
 
-                    if (criteria.with_hidden) {
-                        if (message.ui_snoozed == null)
-                            continue;
-                    }
-
-                    if (criteria.with_encrypted) {
-                        if (message.encrypt == null ||
-                                EntityMessage.ENCRYPT_NONE.equals(message.encrypt))
-                            continue;
-                    }
+                        if (!matched && criteria.in_message)
+                            matched = matchFile(id, query, false);
 
-                    if (criteria.with_attachments) {
-                        if (message.attachments == 0)
+                        if (!matched)
                             continue;
-                    }
-
-                    if (excluded.contains(message.folder))
-                        continue;
-
-                    boolean matched = false;
 
-                    if (!matched && criteria.in_senders) {
-                        if (contains(message.from, query))
-                            matched = true;
+                        found += db.message().setMessageFound(id, true);
+                        if (Log.isInfoEnabled())
+                            Log.i("Boundary matched=" + id + " found=" + found);
                     }
-
-                    if (!matched && criteria.in_recipients) {
-                        if (contains(message.to, query) ||
-                                contains(message.cc, query) ||
-                                contains(message.bcc, query))
-                            matched = true;
-                    }
-
-                    if (!matched && criteria.in_subject) {
-                        if (message.subject != null &&
-                                message.subject.toLowerCase().contains(query))
-                            matched = true;
-                    }
-
-                    if (!matched && criteria.in_keywords) {
-                        if (message.keywords != null)
-                            for (String keyword : message.keywords)
-                                if (keyword.toLowerCase().contains(query)) {
-                                    matched = true;
-                                    break;
-                                }
-                    }
-
-                    if (!matched && criteria.in_notes) {
-                        if (message.notes != null &&
-                                message.notes.toLowerCase().contains(query))
-                            matched = true;
-                    }
-
-                    if (!matched && criteria.in_message)
-                        try {
-                            File file = EntityMessage.getFile(context, id);
-                            if (file.exists()) {
-                                String html = Helper.readText(file);
-                                if (html.toLowerCase().contains(query)) {
-                                    String text = HtmlHelper.getFullText(html);
-                                    if (text != null &&
-                                            text.toLowerCase().contains(query))
-                                        matched = true;
-                                }
-                            }
-                        } catch (IOException ex) {
-                            Log.e(ex);
-                        }
-
-                    if (!matched)
-                        continue;
-
-                    found += db.message().setMessageFound(id, true);
-                    Log.i("Boundary matched=" + id + " found=" + found);
                 }
-                db.setTransactionSuccessful();
 
+                db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
             }
@@ -435,37 +396,38 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
             if (state.matches.size() == 0)
                 break;
 
-            for (int i = state.index; i < state.matches.size() && found < pageSize && !state.destroyed; i++) {
-                state.index = i + 1;
-
-                TupleMatch match = state.matches.get(i);
-                boolean matched = (match.matched != null && match.matched);
-
-                if (query != null) {
-                    if (!matched && (criteria.in_message || criteria.in_html))
-                        try {
-                            File file = EntityMessage.getFile(context, match.id);
-                            if (file.exists()) {
-                                String html = Helper.readText(file);
-                                if (html.toLowerCase().contains(query)) {
-                                    if (criteria.in_html)
-                                        matched = true;
-                                    else {
-                                        String text = HtmlHelper.getFullText(html);
-                                        if (text != null && text.toLowerCase().contains(query))
-                                            matched = true;
-                                    }
-                                }
-                            }
-                        } catch (IOException ex) {
-                            Log.e(ex);
+            while (state.index < state.matches.size() && found < pageSize && !state.destroyed) {
+                // Search message files in parallel
+                int from = state.index;
+                int to = Math.min(from + SEARCH_PARALLEL_BATCH, state.matches.size());
+                List<Future<Boolean>> futures = new ArrayList<>();
+                for (int i = from; i < to; i++) {
+                    final TupleMatch match = state.matches.get(i);
+                    futures.add(executorSearch.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() {
+                            if (match.matched != null && match.matched)
+                                return true;
+                            if (query != null && (criteria.in_message || criteria.in_html))
+                                return matchFile(match.id, query, criteria.in_html);
+                            return false;
                         }
+                    }));
                 }
 
-                if (matched) {
-                    found += db.message().setMessageFound(match.id, true);
-                    Log.i("Boundary matched=" + match.id + " found=" + found);
+                for (int i = from; i < to && found < pageSize && !state.destroyed; i++) {
+                    state.index = i + 1;
+
+                    TupleMatch match = state.matches.get(i);
+                    if (futures.get(i - from).get()) {
+                        found += db.message().setMessageFound(match.id, true);
+                        if (Log.isInfoEnabled())
+                            Log.i("Boundary matched=" + match.id + " found=" + found);
+                    }
                 }
+
+                for (Future<Boolean> future : futures)
+                    future.cancel(false);
             }
         }
 
@@ -476,6 +438,27 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
         return found;
     }
 
+    private boolean matchFile(long id, String query, boolean html) {
+        try {
+            File file = EntityMessage.getFile(context, id);
+            if (!file.exists())
+                return false;
+
+            // Scan the file without reading it into memory first
+            if (!Helper.containsIgnoreCase(file, query))
+                return false;
+
+            if (html)
+                return true;
+
+            String text = HtmlHelper.getFullText(context, id);
+            return (text != null && text.toLowerCase().contains(query));
+        } catch (IOException ex) {
+            Log.e(ex);
+            return false;
+        }
+    }
+
     private int load_server(final State state) throws MessagingException, ProtocolException, IOException {
         DB db = DB.getInstance(context);
 
@@ -694,7 +677,8 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
             for (int j = isub.length - 1; j >= 0 && found < pageSize && !state.destroyed && astate.isRecoverable(); j--)
                 try {
                     long uid = state.ifolder.getUID(isub[j]);
-                    Log.i("Boundary server sync uid=" + uid);
+                    if (Log.isInfoEnabled())
+                        Log.i("Boundary server sync uid=" + uid);
                     EntityMessage message = db.message().getMessageByUid(browsable.id, uid);
                     if (message == null) {
                         message = Core.synchronizeMessage(context,
@@ -708,7 +692,8 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
                     }
                     if (message != null && criteria != null)
                         found += db.message().setMessageFound(message.id, true);
-                    Log.i("Boundary matched=" + (message == null ? null : message.id) + " found=" + found);
+                    if (Log.isInfoEnabled())
+                        Log.i("Boundary matched=" + (message == null ? null : message.id) + " found=" + found);
                 } catch (MessageRemovedException | MessageRemovedIOException ex) {
                     Log.w(browsable.name + " boundary server", ex);
                 } catch (FolderClosedException ex) {
@@ -783,15 +768,6 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
         return imessages;
     }
 
-    private static boolean contains(Address[] addresses, String text) {
-        if (addresses == null)
-            return false;
-        for (Address address : addresses)
-            if (address.toString().toLowerCase().contains(text))
-                return true;
-        return false;
-    }
-
     State getState() {
         return this.state;
     }
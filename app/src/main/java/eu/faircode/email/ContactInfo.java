@@ -20,6 +20,7 @@ package eu.faircode.email;
 */
 
 import android.Manifest;
+import android.app.ActivityManager;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -34,6 +35,7 @@ import android.net.NetworkInfo;
 import android.net.Uri;
 import android.provider.ContactsContract;
 import android.text.TextUtils;
+import android.util.LruCache;
 import android.util.Pair;
 import android.util.Xml;
 
@@ -79,6 +81,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.mail.Address;
 import javax.mail.internet.InternetAddress;
@@ -102,8 +105,14 @@ public class ContactInfo {
 
     static final int FAVICON_READ_BYTES = 50 * 1024;
 
+    private static final int CONTACT_CACHE_FRACTION = 16; // of memory class
+    private static final int FAVICON_CACHE_FRACTION = 32; // of memory class
+
     private static Map<String, Lookup> emailLookup = new ConcurrentHashMap<>();
-    private static final Map<String, ContactInfo> emailContactInfo = new HashMap<>();
+    private static LruCache<String, ContactInfo> emailContactInfo = null;
+    private static final Map<String, Future<ContactInfo>> pendingContactInfo = new HashMap<>();
+    private static LruCache<String, CachedFavicon> faviconCache = null;
+    private static final Map<String, Future<Favicon>> pendingFavicon = new HashMap<>();
 
     private static final ExecutorService executorLookup =
             Helper.getBackgroundExecutor(1, "contact");
@@ -115,7 +124,8 @@ public class ContactInfo {
     private static final int FAVICON_ICON_SIZE = 64; // dp
     private static final int FAVICON_CONNECT_TIMEOUT = 5 * 1000; // milliseconds
     private static final int FAVICON_READ_TIMEOUT = 10 * 1000; // milliseconds
-    private static final long CACHE_CONTACT_DURATION = 2 * 60 * 1000L; // milliseconds
+    private static final long CACHE_CONTACT_DURATION = 10 * 60 * 1000L; // milliseconds
+    private static final long CACHE_CONTACT_NEGATIVE_DURATION = 2 * 60 * 1000L; // milliseconds
     private static final long CACHE_FAVICON_DURATION = 2 * 7 * 24 * 60 * 60 * 1000L; // milliseconds
     private static final float MIN_FAVICON_LUMINANCE = 0.2f;
 
@@ -166,7 +176,9 @@ public class ContactInfo {
     }
 
     private boolean isExpired() {
-        return (new Date().getTime() - time > CACHE_CONTACT_DURATION);
+        boolean found = (known || (type != null && !"identicon".equals(type) && !"letter".equals(type)));
+        long duration = (found ? CACHE_CONTACT_DURATION : CACHE_CONTACT_NEGATIVE_DURATION);
+        return (new Date().getTime() - time > duration);
     }
 
     static void cleanup(Context context) {
@@ -189,9 +201,8 @@ public class ContactInfo {
     }
 
     static void clearCache(Context context, boolean files) {
-        synchronized (emailContactInfo) {
-            emailContactInfo.clear();
-        }
+        getContactCache(context).evictAll();
+        getFaviconCache(context).evictAll();
 
         if (!files)
             return;
@@ -236,19 +247,59 @@ public class ContactInfo {
     }
 
     private static ContactInfo _get(
-            Context context,
-            long account, String folderType,
-            String selector, InternetAddress address, boolean cacheOnly) {
-        String key = MessageHelper.formatAddresses(new Address[]{address});
-        synchronized (emailContactInfo) {
-            ContactInfo info = emailContactInfo.get(key);
-            if (info != null && !info.isExpired())
-                return info;
-        }
+            final Context context,
+            final long account, final String folderType,
+            final String selector, final InternetAddress address, boolean cacheOnly) {
+        final String key = MessageHelper.formatAddresses(new Address[]{address});
+        ContactInfo info = getContactCache(context).get(key);
+        if (info != null && !info.isExpired())
+            return info;
 
         if (cacheOnly)
             return null;
 
+        // Coalesce concurrent lookups of the same address
+        FutureTask<ContactInfo> task = null;
+        Future<ContactInfo> future;
+        synchronized (pendingContactInfo) {
+            future = pendingContactInfo.get(key);
+            if (future == null) {
+                task = new FutureTask<>(new Callable<ContactInfo>() {
+                    @Override
+                    public ContactInfo call() {
+                        return resolve(context, account, folderType, selector, address, key);
+                    }
+                });
+                pendingContactInfo.put(key, task);
+                future = task;
+            }
+        }
+
+        if (task != null)
+            try {
+                task.run();
+            } finally {
+                synchronized (pendingContactInfo) {
+                    pendingContactInfo.remove(key);
+                }
+            }
+
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Log.w(ex);
+            Thread.currentThread().interrupt();
+            return resolve(context, account, folderType, selector, address, key);
+        } catch (ExecutionException ex) {
+            Log.w(ex);
+            return resolve(context, account, folderType, selector, address, key);
+        }
+    }
+
+    private static ContactInfo resolve(
+            Context context,
+            long account, String folderType,
+            String selector, InternetAddress address, String key) {
         ContactInfo info = new ContactInfo();
         info.email = address.getAddress();
 
@@ -321,179 +372,15 @@ public class ContactInfo {
                         break;
                     }
 
-                final String domain = d.toLowerCase(Locale.ROOT);
-                final String email = info.email.toLowerCase(Locale.ROOT);
-
-                File dir = new File(context.getFilesDir(), "favicons");
-                if (!dir.exists())
-                    dir.mkdir();
-
-                try {
-                    // check cache
-                    File[] files = null;
-                    if (efavicons) {
-                        File f = new File(dir, email + ".extra");
-                        if (f.exists())
-                            files = new File[]{f};
-                    }
-                    if (files == null)
-                        files = dir.listFiles(new FilenameFilter() {
-                            @Override
-                            public boolean accept(File file, String name) {
-                                return name.startsWith(domain);
-                            }
-                        });
-                    if (files != null && files.length == 1) {
-                        if (files[0].length() == 0)
-                            Log.i("Avatar blacklisted cache" + files[0].getName());
-                        else {
-                            Log.i("Avatar from cache=" + files[0].getName());
-                            String ext = Helper.getExtension(files[0].getName());
-                            String[] data = (ext == null ? null : ext.split("_"));
-                            info.bitmap = BitmapFactory.decodeFile(files[0].getAbsolutePath());
-                            if (data != null) {
-                                info.type = (data.length > 0 ? data[0] : "unknown");
-                                info.verified = (data.length > 1 && "verified".equals(data[1]));
-                            }
-                        }
-                    } else {
-                        final int scaleToPixels = Helper.dp2pixels(context, FAVICON_ICON_SIZE);
-
-                        List<Future<Favicon>> futures = new ArrayList<>();
-
-                        if (bimi)
-                            futures.add(executorFavicon.submit(new Callable<Favicon>() {
-                                @Override
-                                public Favicon call() throws Exception {
-                                    Pair<Bitmap, Boolean> bimi =
-                                            Bimi.get(context, domain, selector, scaleToPixels);
-                                    return (bimi == null ? null : new Favicon(bimi.first, "vmc", bimi.second));
-                                }
-                            }));
-
-                        if (efavicons) {
-                            futures.add(executorFavicon.submit(Extra.getG(email, scaleToPixels, context)));
-                            futures.add(executorFavicon.submit(Extra.getL(email, scaleToPixels, context)));
-                        }
-
-                        if (favicons) {
-                            String host = domain;
-                            while (host.indexOf('.') > 0) {
-                                final URL base = new URL("https://" + host);
-                                final URL www = new URL("https://www." + host);
-
-                                futures.add(executorFavicon.submit(new Callable<Favicon>() {
-                                    @Override
-                                    public Favicon call() throws Exception {
-                                        return parseFavicon(base, scaleToPixels, context);
-                                    }
-                                }));
-
-                                futures.add(executorFavicon.submit(new Callable<Favicon>() {
-                                    @Override
-                                    public Favicon call() throws Exception {
-                                        return parseFavicon(www, scaleToPixels, context);
-                                    }
-                                }));
-
-                                int dot = host.indexOf('.');
-                                host = host.substring(dot + 1);
-                            }
-
-                            host = domain;
-                            while (host.indexOf('.') > 0) {
-                                final URL base = new URL("https://" + host);
-                                final URL www = new URL("https://www." + host);
-
-                                futures.add(executorFavicon.submit(new Callable<Favicon>() {
-                                    @Override
-                                    public Favicon call() throws Exception {
-                                        return getFavicon(new URL(base, "favicon.ico"), null, scaleToPixels, context);
-                                    }
-                                }));
-
-                                futures.add(executorFavicon.submit(new Callable<Favicon>() {
-                                    @Override
-                                    public Favicon call() throws Exception {
-                                        return getFavicon(new URL(www, "favicon.ico"), null, scaleToPixels, context);
-                                    }
-                                }));
-
-                                int dot = host.indexOf('.');
-                                host = host.substring(dot + 1);
-                            }
-                        }
+                String domain = d.toLowerCase(Locale.ROOT);
+                String email = info.email.toLowerCase(Locale.ROOT);
 
-                        Throwable ex = null;
-                        for (Future<Favicon> future : futures)
-                            try {
-                                Favicon favicon = future.get();
-                                Log.i("Using favicon source=" + (favicon == null ? null : favicon.source));
-
-                                if (favicon == null)
-                                    continue;
-
-                                float lum = 0; // ImageHelper.getLuminance(favicon.bitmap);
-                                if (lum < MIN_FAVICON_LUMINANCE) {
-                                    Bitmap bitmap = Bitmap.createBitmap(
-                                            favicon.bitmap.getWidth(),
-                                            favicon.bitmap.getHeight(),
-                                            favicon.bitmap.getConfig());
-                                    bitmap.eraseColor(Color.WHITE);
-                                    Canvas canvas = new Canvas(bitmap);
-                                    canvas.drawBitmap(favicon.bitmap, 0, 0, null);
-                                    favicon.bitmap.recycle();
-                                    favicon.bitmap = bitmap;
-                                }
-
-                                info.bitmap = favicon.bitmap;
-                                info.type = favicon.type;
-                                info.verified = favicon.verified;
-                                break;
-                            } catch (ExecutionException exex) {
-                                ex = exex.getCause();
-                            } catch (Throwable exex) {
-                                ex = exex;
-                            }
-
-                        if (info.bitmap == null)
-                            if (ex == null)
-                                throw new FileNotFoundException();
-                            else
-                                throw ex;
-
-                        // Add to cache
-                        File output = new File(dir,
-                                ("extra".equals(info.type) ? email : domain) +
-                                        "." + info.type +
-                                        (info.verified ? "_verified" : ""));
-                        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(output))) {
-                            info.bitmap.compress(Bitmap.CompressFormat.PNG, 90, os);
-                        }
-                        Log.i("Avatar to cache=" + output.getName());
-                    }
-                } catch (Throwable ex) {
-                    if (isRecoverable(ex, context))
-                        Log.i(ex);
-                    else {
-                        if (ex instanceof FileNotFoundException ||
-                                ex instanceof CertificateException ||
-                                ex instanceof CertPathValidatorException ||
-                                ex.getCause() instanceof CertPathValidatorException ||
-                                ex.getCause() instanceof CertificateException ||
-                                (ex instanceof SSLException &&
-                                        "Unable to parse TLS packet header".equals(ex.getMessage())) ||
-                                (ex instanceof IOException &&
-                                        "Resetting to invalid mark".equals(ex.getMessage())))
-                            Log.i(ex);
-                        else
-                            Log.e(ex);
-                        try {
-                            new File(dir, domain).createNewFile();
-                        } catch (IOException ex1) {
-                            Log.e(ex1);
-                        }
-                    }
+                Favicon favicon = resolveFavicon(context, domain, email, selector, bimi, efavicons, favicons);
+                if (favicon != null) {
+                    Bitmap.Config config = favicon.bitmap.getConfig();
+                    info.bitmap = favicon.bitmap.copy(config == null ? Bitmap.Config.ARGB_8888 : config, false);
+                    info.type = favicon.type;
+                    info.verified = favicon.verified;
                 }
             }
         }
@@ -531,14 +418,249 @@ public class ContactInfo {
                 Log.e(ex);
             }
 
-        synchronized (emailContactInfo) {
-            emailContactInfo.put(key, info);
-        }
-
         info.time = new Date().getTime();
+
+        getContactCache(context).put(key, info);
+
         return info;
     }
 
+    private static Favicon resolveFavicon(
+            final Context context,
+            final String domain, final String email, final String selector,
+            final boolean bimi, final boolean efavicons, final boolean favicons) {
+        // Extra favicons are per email address
+        final String key = (efavicons ? email : domain);
+
+        CachedFavicon cached = getFaviconCache(context).get(key);
+        if (cached != null && !cached.isExpired())
+            return cached.favicon;
+
+        // Coalesce concurrent lookups of the same domain
+        FutureTask<Favicon> task = null;
+        Future<Favicon> future;
+        synchronized (pendingFavicon) {
+            future = pendingFavicon.get(key);
+            if (future == null) {
+                task = new FutureTask<>(new Callable<Favicon>() {
+                    @Override
+                    public Favicon call() {
+                        Favicon favicon = _resolveFavicon(context, domain, email, selector, bimi, efavicons, favicons);
+                        getFaviconCache(context).put(key, new CachedFavicon(favicon));
+                        return favicon;
+                    }
+                });
+                pendingFavicon.put(key, task);
+                future = task;
+            }
+        }
+
+        if (task != null)
+            try {
+                task.run();
+            } finally {
+                synchronized (pendingFavicon) {
+                    pendingFavicon.remove(key);
+                }
+            }
+
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Log.w(ex);
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException ex) {
+            Log.w(ex);
+            return null;
+        }
+    }
+
+    private static Favicon _resolveFavicon(
+            final Context context,
+            final String domain, final String email, final String selector,
+            boolean bimi, boolean efavicons, boolean favicons) {
+        File dir = new File(context.getFilesDir(), "favicons");
+        if (!dir.exists())
+            dir.mkdir();
+
+        try {
+            // check cache
+            File[] files = null;
+            if (efavicons) {
+                File f = new File(dir, email + ".extra");
+                if (f.exists())
+                    files = new File[]{f};
+            }
+            if (files == null)
+                files = dir.listFiles(new FilenameFilter() {
+                    @Override
+                    public boolean accept(File file, String name) {
+                        return name.startsWith(domain);
+                    }
+                });
+            if (files != null && files.length == 1) {
+                if (files[0].length() == 0) {
+                    Log.i("Avatar blacklisted cache" + files[0].getName());
+                    return null;
+                } else {
+                    Log.i("Avatar from cache=" + files[0].getName());
+                    String ext = Helper.getExtension(files[0].getName());
+                    String[] data = (ext == null ? null : ext.split("_"));
+                    Bitmap bitmap = BitmapFactory.decodeFile(files[0].getAbsolutePath());
+                    if (bitmap == null)
+                        return null;
+                    if (data == null)
+                        return new Favicon(bitmap, null, false);
+                    else
+                        return new Favicon(bitmap,
+                                data.length > 0 ? data[0] : "unknown",
+                                data.length > 1 && "verified".equals(data[1]));
+                }
+            } else {
+                final int scaleToPixels = Helper.dp2pixels(context, FAVICON_ICON_SIZE);
+
+                List<Future<Favicon>> futures = new ArrayList<>();
+
+                if (bimi)
+                    futures.add(executorFavicon.submit(new Callable<Favicon>() {
+                        @Override
+                        public Favicon call() throws Exception {
+                            Pair<Bitmap, Boolean> bimi =
+                                    Bimi.get(context, domain, selector, scaleToPixels);
+                            return (bimi == null ? null : new Favicon(bimi.first, "vmc", bimi.second));
+                        }
+                    }));
+
+                if (efavicons) {
+                    futures.add(executorFavicon.submit(Extra.getG(email, scaleToPixels, context)));
+                    futures.add(executorFavicon.submit(Extra.getL(email, scaleToPixels, context)));
+                }
+
+                if (favicons) {
+                    String host = domain;
+                    while (host.indexOf('.') > 0) {
+                        final URL base = new URL("https://" + host);
+                        final URL www = new URL("https://www." + host);
+
+                        futures.add(executorFavicon.submit(new Callable<Favicon>() {
+                            @Override
+                            public Favicon call() throws Exception {
+                                return parseFavicon(base, scaleToPixels, context);
+                            }
+                        }));
+
+                        futures.add(executorFavicon.submit(new Callable<Favicon>() {
+                            @Override
+                            public Favicon call() throws Exception {
+                                return parseFavicon(www, scaleToPixels, context);
+                            }
+                        }));
+
+                        int dot = host.indexOf('.');
+                        host = host.substring(dot + 1);
+                    }
+
+                    host = domain;
+                    while (host.indexOf('.') > 0) {
+                        final URL base = new URL("https://" + host);
+                        final URL www = new URL("https://www." + host);
+
+                        futures.add(executorFavicon.submit(new Callable<Favicon>() {
+                            @Override
+                            public Favicon call() throws Exception {
+                                return getFavicon(new URL(base, "favicon.ico"), null, scaleToPixels, context);
+                            }
+                        }));
+
+                        futures.add(executorFavicon.submit(new Callable<Favicon>() {
+                            @Override
+                            public Favicon call() throws Exception {
+                                return getFavicon(new URL(www, "favicon.ico"), null, scaleToPixels, context);
+                            }
+                        }));
+
+                        int dot = host.indexOf('.');
+                        host = host.substring(dot + 1);
+                    }
+                }
+
+                Favicon result = null;
+                Throwable ex = null;
+                for (Future<Favicon> future : futures)
+                    try {
+                        Favicon favicon = future.get();
+                        Log.i("Using favicon source=" + (favicon == null ? null : favicon.source));
+
+                        if (favicon == null)
+                            continue;
+
+                        float lum = 0; // ImageHelper.getLuminance(favicon.bitmap);
+                        if (lum < MIN_FAVICON_LUMINANCE) {
+                            Bitmap bitmap = Bitmap.createBitmap(
+                                    favicon.bitmap.getWidth(),
+                                    favicon.bitmap.getHeight(),
+                                    favicon.bitmap.getConfig());
+                            bitmap.eraseColor(Color.WHITE);
+                            Canvas canvas = new Canvas(bitmap);
+                            canvas.drawBitmap(favicon.bitmap, 0, 0, null);
+                            favicon.bitmap.recycle();
+                            favicon.bitmap = bitmap;
+                        }
+
+                        result = favicon;
+                        break;
+                    } catch (ExecutionException exex) {
+                        ex = exex.getCause();
+                    } catch (Throwable exex) {
+                        ex = exex;
+                    }
+
+                if (result == null)
+                    if (ex == null)
+                        throw new FileNotFoundException();
+                    else
+                        throw ex;
+
+                // Add to cache
+                File output = new File(dir,
+                        ("extra".equals(result.type) ? email : domain) +
+                                "." + result.type +
+                                (result.verified ? "_verified" : ""));
+                try (OutputStream os = new BufferedOutputStream(new FileOutputStream(output))) {
+                    result.bitmap.compress(Bitmap.CompressFormat.PNG, 90, os);
+                }
+                Log.i("Avatar to cache=" + output.getName());
+
+                return result;
+            }
+        } catch (Throwable ex) {
+            if (isRecoverable(ex, context))
+                Log.i(ex);
+            else {
+                if (ex instanceof FileNotFoundException ||
+                        ex instanceof CertificateException ||
+                        ex instanceof CertPathValidatorException ||
+                        ex.getCause() instanceof CertPathValidatorException ||
+                        ex.getCause() instanceof CertificateException ||
+                        (ex instanceof SSLException &&
+                                "Unable to parse TLS packet header".equals(ex.getMessage())) ||
+                        (ex instanceof IOException &&
+                                "Resetting to invalid mark".equals(ex.getMessage())))
+                    Log.i(ex);
+                else
+                    Log.e(ex);
+                try {
+                    new File(dir, domain).createNewFile();
+                } catch (IOException ex1) {
+                    Log.e(ex1);
+                }
+            }
+        }
+
+        return null;
+    }
+
     private static Favicon parseFavicon(URL base, int scaleToPixels, Context context) throws IOException {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         boolean favicons_partial = prefs.getBoolean("favicons_partial", true);
@@ -895,6 +1017,7 @@ public class ContactInfo {
                 @Override
                 public void onChange(boolean selfChange, Uri uri) {
                     Log.i("Contact changed uri=" + uri);
+                    getContactCache(context).evictAll();
                     executorLookup.submit(new Runnable() {
                         @Override
                         public void run() {
@@ -1029,16 +1152,69 @@ public class ContactInfo {
     }
 
     static int[] getStats() {
-        synchronized (emailContactInfo) {
-            return new int[]{emailLookup.size(), emailContactInfo.size()};
+        synchronized (ContactInfo.class) {
+            return new int[]{emailLookup.size(),
+                    emailContactInfo == null ? 0 : emailContactInfo.snapshot().size()};
+        }
+    }
+
+    private static LruCache<String, ContactInfo> getContactCache(Context context) {
+        synchronized (ContactInfo.class) {
+            if (emailContactInfo == null) {
+                int size = getCacheSize(context, CONTACT_CACHE_FRACTION);
+                Log.i("Contact cache size=" + Helper.humanReadableByteCount(size));
+                emailContactInfo = new LruCache<String, ContactInfo>(size) {
+                    @Override
+                    protected int sizeOf(String key, ContactInfo value) {
+                        return (value.bitmap == null ? 1 : value.bitmap.getByteCount());
+                    }
+                };
+            }
+            return emailContactInfo;
+        }
+    }
+
+    private static LruCache<String, CachedFavicon> getFaviconCache(Context context) {
+        synchronized (ContactInfo.class) {
+            if (faviconCache == null) {
+                int size = getCacheSize(context, FAVICON_CACHE_FRACTION);
+                Log.i("Favicon cache size=" + Helper.humanReadableByteCount(size));
+                faviconCache = new LruCache<String, CachedFavicon>(size) {
+                    @Override
+                    protected int sizeOf(String key, CachedFavicon value) {
+                        return (value.favicon == null ? 1 : value.favicon.bitmap.getByteCount());
+                    }
+                };
+            }
+            return faviconCache;
         }
     }
 
+    private static int getCacheSize(Context context, int fraction) {
+        ActivityManager am = Helper.getSystemService(context, ActivityManager.class);
+        return am.getMemoryClass() * 1024 * 1024 / fraction;
+    }
+
     private static class Lookup {
         Uri uri;
         String displayName;
     }
 
+    private static class CachedFavicon {
+        private final Favicon favicon;
+        private final long time;
+
+        CachedFavicon(Favicon favicon) {
+            this.favicon = favicon;
+            this.time = new Date().getTime();
+        }
+
+        boolean isExpired() {
+            long duration = (favicon == null ? CACHE_CONTACT_NEGATIVE_DURATION : CACHE_CONTACT_DURATION);
+            return (new Date().getTime() - time > duration);
+        }
+    }
+
     static class Favicon {
         private Bitmap bitmap;
         private String type;
@@ -94,17 +94,20 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -144,6 +147,7 @@ class Core {
     private static final int MAX_NOTIFICATION_COUNT = 100; // per group
     private static final long SCREEN_ON_DURATION = 3000L; // milliseconds
     private static final int SYNC_BATCH_SIZE = 20;
+    private static final int UID_BATCH_SIZE = 500;
     private static final int DOWNLOAD_BATCH_SIZE = 20;
     private static final long YIELD_DURATION = 200L; // milliseconds
     private static final long JOIN_WAIT_ALIVE = 5 * 60 * 1000L; // milliseconds
@@ -156,8 +160,10 @@ class Core {
     private static final long EXISTS_RETRY_DELAY = 20 * 1000L; // milliseconds
     private static final int FIND_RETRY_COUNT = 3; // times
     private static final long FIND_RETRY_DELAY = 5 * 1000L; // milliseconds
+    private static final long SYNC_FLAGS_FULL_INTERVAL = 6 * 3600 * 1000L; // milliseconds
 
     private static final Map<Long, List<EntityIdentity>> accountIdentities = new HashMap<>();
+    private static final Map<Long, Long> folderFlagsSynced = new HashMap<>();
 
     static void clearIdentities() {
         synchronized (accountIdentities) {
@@ -672,7 +678,7 @@ class Core {
 
                             String msg = "Unrecoverable operation=" + op.name + " tries=" + op.tries + " created=" + new Date(op.created);
 
-                            EntityLog.log(context, msg +
+                            EntityLog.error(context, msg +
                                     " folder=" + folder.id + ":" + folder.name +
                                     " message=" + (message == null ? null : message.id + ":" + message.subject) +
                                     " reason=" + Log.formatThrowable(ex, false));
@@ -1989,6 +1995,7 @@ class Core {
         File file = message.getFile(context);
         Helper.writeText(file, body);
         String text = HtmlHelper.getFullText(body);
+        HtmlHelper.writeFullText(context, message.id, text);
         message.preview = HtmlHelper.getPreview(text);
         message.language = HtmlHelper.getLanguage(context, message.subject, text);
         Integer plain_only = parts.isPlainOnly();
@@ -3143,6 +3150,7 @@ class Core {
                         File file = message.getFile(context);
                         Helper.writeText(file, body);
                         String text = HtmlHelper.getFullText(body);
+                        HtmlHelper.writeFullText(context, message.id, text);
                         message.preview = HtmlHelper.getPreview(text);
                         message.language = HtmlHelper.getLanguage(context, message.subject, text);
                         db.message().setMessageContent(message.id,
@@ -3278,11 +3286,14 @@ class Core {
             db.folder().setFolderSyncState(folder.id, "syncing");
 
             // Check uid validity
+            boolean uidv_changed = false;
+            boolean full_flags = false;
             try {
                 long uidv = ifolder.getUIDValidity();
                 if (folder.uidv != null && !folder.uidv.equals(uidv)) {
                     Log.w(folder.name + " uid validity changed from " + folder.uidv + " to " + uidv);
                     db.message().deleteLocalMessages(folder.id);
+                    uidv_changed = true;
                 }
                 folder.uidv = uidv;
                 db.folder().setFolderUidValidity(folder.id, uidv);
@@ -3358,7 +3369,7 @@ class Core {
             Long[] ids;
             if (modified || !sync_quick_imap || force) {
                 // Get list of local uids
-                final List<Long> uids = db.message().getUids(folder.id, sync_kept || force ? null : sync_time);
+                final UidSet uids = new UidSet(db.message().getUids(folder.id, sync_kept || force ? null : sync_time));
                 Log.i(folder.name + " local count=" + uids.size());
 
                 // Reduce list of local uids
@@ -3411,19 +3422,28 @@ class Core {
                     stats.flags_ms = (SystemClock.elapsedRealtime() - fetch);
                     Log.i(folder.name + " remote fetched=" + stats.flags_ms + " ms");
 
-                    for (int i = 0; i < imessages.length; i++) {
+                    for (int i = 0; i < imessages.length && !modified; i += UID_BATCH_SIZE) {
                         state.ensureRunning("Sync/IMAP/check");
 
                         try {
-                            long uid = ifolder.getUID(imessages[i]);
-                            EntityMessage message = db.message().getMessageByUid(folder.id, uid);
-                            ids[i] = (message == null ? null : message.id);
-                            if (message == null || message.ui_hide) {
-                                Log.i(folder.name + " missing uid=" + uid);
-                                modified = true;
-                                break;
-                            } else
-                                uids.remove(uid);
+                            int to = Math.min(imessages.length, i + UID_BATCH_SIZE);
+                            List<Long> batch = new ArrayList<>(to - i);
+                            for (int j = i; j < to; j++)
+                                batch.add(ifolder.getUID(imessages[j]));
+
+                            Map<Long, TupleUidState> local = getUidStates(db, folder.id, batch);
+                            for (int j = i; j < to; j++) {
+                                long uid = batch.get(j - i);
+                                TupleUidState message = local.get(uid);
+                                ids[j] = (message == null ? null : message.id);
+                                if (message == null || message.ui_hide) {
+                                    if (Log.isInfoEnabled())
+                                        Log.i(folder.name + " missing uid=" + uid);
+                                    modified = true;
+                                    break;
+                                } else
+                                    uids.remove(uid);
+                            }
                         } catch (Throwable ex) {
                             Log.w(ex);
                             modified = true;
@@ -3442,14 +3462,46 @@ class Core {
                 if (modified) {
                     long fetch = SystemClock.elapsedRealtime();
 
+                    // https://datatracker.ietf.org/doc/html/rfc7162#section-3.1.4
+                    Set<Long> changed = null;
+                    if (modseq != null && folder.modseq != null &&
+                            !force && initialize == 0 && !uidv_changed &&
+                            !isFullFlagSyncDue(folder.id))
+                        try {
+                            changed = getChangedUids(ifolder, folder.modseq);
+                            Log.i(folder.name + " changed since=" + folder.modseq + " count=" + changed.size());
+                        } catch (FolderClosedException ex) {
+                            throw ex;
+                        } catch (Throwable ex) {
+                            Log.w(folder.name, ex);
+                        }
+                    full_flags = (changed == null);
+
                     FetchProfile fp = new FetchProfile();
                     fp.add(UIDFolder.FetchProfileItem.UID); // To check if message exists
                     fp.add(FetchProfile.Item.FLAGS); // To update existing messages
                     if (account.isGmail())
                         fp.add(GmailFolder.FetchProfileItem.LABELS);
-                    ifolder.fetch(imessages, fp);
 
-                    stats.flags = imessages.length;
+                    Message[] iflags = imessages;
+                    if (changed != null) {
+                        FetchProfile fpu = new FetchProfile();
+                        fpu.add(UIDFolder.FetchProfileItem.UID);
+                        ifolder.fetch(imessages, fpu);
+
+                        // Fetch flags of new and changed messages only
+                        List<Message> selected = new ArrayList<>();
+                        for (Message imessage : imessages) {
+                            long uid = ifolder.getUID(imessage);
+                            if (changed.contains(uid) || !uids.contains(uid))
+                                selected.add(imessage);
+                        }
+                        iflags = selected.toArray(new Message[0]);
+                        Log.i(folder.name + " delta flags=" + iflags.length + "/" + imessages.length);
+                    }
+                    ifolder.fetch(iflags, fp);
+
+                    stats.flags = iflags.length;
                     stats.flags_ms = (SystemClock.elapsedRealtime() - fetch);
                     Log.i(folder.name + " remote fetched=" + stats.flags_ms + " ms");
 
@@ -3471,10 +3523,12 @@ class Core {
                         state.ensureRunning("Sync/IMAP/delete");
 
                         try {
-                            if (perform_expunge && imessages[i].isSet(Flags.Flag.DELETED))
+                            long uid = ifolder.getUID(imessages[i]);
+                            boolean unchanged = (changed != null && uids.contains(uid) && !changed.contains(uid));
+                            if (perform_expunge && !unchanged && imessages[i].isSet(Flags.Flag.DELETED))
                                 deleted.add(imessages[i]);
                             else
-                                uids.remove(ifolder.getUID(imessages[i]));
+                                uids.remove(uid);
                         } catch (MessageRemovedException ex) {
                             Log.w(folder.name, ex);
                         } catch (FolderClosedException ex) {
@@ -3482,7 +3536,7 @@ class Core {
                         } catch (Throwable ex) {
                             Log.e(folder.name, ex);
                             modseq = null;
-                            EntityLog.log(context, folder.name + " expunge " + Log.formatThrowable(ex, false));
+                            EntityLog.error(context, folder.name + " expunge " + Log.formatThrowable(ex, false));
                             db.folder().setFolderError(folder.id, Log.formatThrowable(ex));
                         }
                     }
@@ -3504,7 +3558,7 @@ class Core {
                                 List<Pair<Long, Long>> ranges = new ArrayList<>();
                                 long first = -1;
                                 long last = -1;
-                                for (long uid : uids)
+                                for (long uid : uids.toArray())
                                     if (first < 0)
                                         first = uid;
                                     else if ((last < 0 ? first : last) + 1 == uid)
@@ -3628,9 +3682,10 @@ class Core {
 
                     // Delete local messages not at remote
                     Log.i(folder.name + " delete=" + uids.size());
-                    for (Long uid : uids) {
+                    for (long uid : uids.toArray()) {
                         int count = db.message().deleteMessage(folder.id, uid);
-                        Log.i(folder.name + " delete local uid=" + uid + " count=" + count);
+                        if (Log.isInfoEnabled())
+                            Log.i(folder.name + " delete local uid=" + uid + " count=" + count);
                     }
 
                     List<EntityRule> rules = db.rule().getEnabledRules(folder.id);
@@ -3656,12 +3711,23 @@ class Core {
                         Message[] isub = Arrays.copyOfRange(imessages, from, i + 1);
 
                         // Full fetch new/changed messages only
+                        List<Long> batch = new ArrayList<>(isub.length);
+                        for (Message imessage : isub)
+                            batch.add(ifolder.getUID(imessage)); // already fetched
+                        Map<Long, TupleUidState> local = getUidStates(db, folder.id, batch);
                         List<Message> full = new ArrayList<>();
-                        for (Message imessage : isub) {
-                            long uid = ifolder.getUID(imessage); // already fetched
-                            EntityMessage message = db.message().getMessageByUid(folder.id, uid);
-                            if (message == null)
-                                full.add(imessage);
+                        List<Message> hidden = new ArrayList<>();
+                        for (int j = 0; j < isub.length; j++) {
+                            TupleUidState uidState = local.get(batch.get(j));
+                            if (uidState == null)
+                                full.add(isub[j]);
+                            else if (uidState.ui_hide && changed != null && !changed.contains(batch.get(j)))
+                                hidden.add(isub[j]);
+                        }
+                        if (hidden.size() > 0) {
+                            // Flags of unchanged messages were not fetched
+                            ifolder.fetch(hidden.toArray(new Message[0]), fp);
+                            stats.flags += hidden.size();
                         }
                         if (full.size() > 0) {
                             long headers = SystemClock.elapsedRealtime();
@@ -3684,6 +3750,14 @@ class Core {
                         for (int j = isub.length - 1; j >= 0; j--) {
                             state.ensureRunning("Sync/IMAP/sync");
 
+                            TupleUidState unchanged = (changed == null || changed.contains(batch.get(j))
+                                    ? null : local.get(batch.get(j)));
+                            if (unchanged != null && !unchanged.ui_hide) {
+                                ids[from + j] = unchanged.id;
+                                isub[j] = null;
+                                continue;
+                            }
+
                             try {
                                 dc.start();
 
@@ -3697,7 +3771,8 @@ class Core {
                                         boolean flagged = (sync_flagged && isub[j].isSet(Flags.Flag.FLAGGED));
                                         if (received != null && received.getTime() < keep_time && !unseen && !flagged) {
                                             long uid = ifolder.getUID(isub[j]);
-                                            Log.i(folder.name + " Skipping old uid=" + uid + " date=" + received);
+                                            if (Log.isInfoEnabled())
+                                                Log.i(folder.name + " Skipping old uid=" + uid + " date=" + received);
                                             ids[from + j] = null;
                                             continue;
                                         }
@@ -3768,6 +3843,10 @@ class Core {
             folder.modseq = modseq;
             Log.i(folder.name + " set modseq=" + modseq);
             db.folder().setFolderModSeq(folder.id, folder.modseq);
+            if (full_flags)
+                synchronized (folderFlagsSynced) {
+                    folderFlagsSynced.put(folder.id, SystemClock.elapsedRealtime());
+                }
 
             // Update stats
             int count = MessageHelper.getMessageCount(ifolder);
@@ -3910,7 +3989,8 @@ class Core {
         Integer notes_color = null;
         if (message == null) {
             String msgid = helper.getMessageID();
-            Log.i(folder.name + " searching for " + msgid);
+            if (Log.isInfoEnabled())
+                Log.i(folder.name + " searching for " + msgid);
             List<EntityMessage> dups = db.message().getMessagesByMsgId(folder.account, msgid);
             for (EntityMessage dup : dups) {
                 EntityFolder dfolder = db.folder().getFolder(dup.folder);
@@ -4306,6 +4386,7 @@ class Core {
                             File file = message.getFile(context);
                             Helper.writeText(file, body);
                             String text = HtmlHelper.getFullText(body);
+                            HtmlHelper.writeFullText(context, message.id, text);
                             message.preview = HtmlHelper.getPreview(text);
                             message.language = HtmlHelper.getLanguage(context, message.subject, text);
                             db.message().setMessageContent(message.id,
@@ -4482,7 +4563,7 @@ class Core {
             if (process) {
                 EntityContact.received(context, account, folder, message);
                 MessageClassifier.classify(message, folder, true, context);
-            } else
+            } else if (Log.isDebugEnabled())
                 Log.d(folder.name + " unchanged uid=" + uid);
 
             if (process)
@@ -4762,7 +4843,8 @@ class Core {
                     }
 
         if (fetch) {
-            Log.i(folder.name + " fetching message id=" + message.id);
+            if (Log.isInfoEnabled())
+                Log.i(folder.name + " fetching message id=" + message.id);
 
             // Fetch on demand to prevent OOM
 
@@ -4791,6 +4873,7 @@ class Core {
                     File file = message.getFile(context);
                     Helper.writeText(file, body);
                     String text = HtmlHelper.getFullText(body);
+                    HtmlHelper.writeFullText(context, message.id, text);
                     message.preview = HtmlHelper.getPreview(text);
                     message.language = HtmlHelper.getLanguage(context, message.subject, text);
                     db.message().setMessageContent(message.id,
@@ -4803,8 +4886,9 @@ class Core {
 
                     if (stats != null && body != null)
                         stats.content += body.length();
-                    Log.i(folder.name + " downloaded message id=" + message.id +
-                            " size=" + message.size + "/" + (body == null ? null : body.length()));
+                    if (Log.isInfoEnabled())
+                        Log.i(folder.name + " downloaded message id=" + message.id +
+                                " size=" + message.size + "/" + (body == null ? null : body.length()));
 
                     if (TextUtils.isEmpty(body) && parts.hasBody())
                         reportEmptyMessage(context, state, account, istore);
@@ -5663,8 +5747,7 @@ class Core {
                 String preview = message.preview;
                 if (notify_preview_all)
                     try {
-                        File file = message.getFile(context);
-                        preview = HtmlHelper.getFullText(file);
+                        preview = HtmlHelper.getFullText(context, message.id);
                         if (preview != null && preview.length() > MAX_PREVIEW)
                             preview = preview.substring(0, MAX_PREVIEW);
                     } catch (Throwable ex) {
@@ -6054,6 +6137,92 @@ class Core {
         }
     }
 
+    private static boolean isFullFlagSyncDue(long folder) {
+        synchronized (folderFlagsSynced) {
+            Long last = folderFlagsSynced.get(folder);
+            return (last == null || last + SYNC_FLAGS_FULL_INTERVAL < SystemClock.elapsedRealtime());
+        }
+    }
+
+    private static Set<Long> getChangedUids(IMAPFolder ifolder, final long modseq) throws MessagingException {
+        // This is done outside of JavaMail to prevent changed notifications
+        return (Set<Long>) ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
+            @Override
+            public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                Set<Long> result = new HashSet<>();
+                Response[] responses = protocol.command("UID FETCH 1:* (UID FLAGS) (CHANGEDSINCE " + modseq + ")", null);
+                Response response = responses[responses.length - 1];
+                if (!response.isOK())
+                    protocol.handleResult(response);
+
+                for (Response r : responses)
+                    if (r instanceof FetchResponse) {
+                        UID uid = ((FetchResponse) r).getItem(UID.class);
+                        if (uid != null)
+                            result.add(uid.uid);
+                    }
+
+                return result;
+            }
+        });
+    }
+
+    private static Map<Long, TupleUidState> getUidStates(DB db, long folder, List<Long> uids) {
+        Map<Long, TupleUidState> result = new HashMap<>();
+        for (TupleUidState state : db.message().getUidStates(folder, uids))
+            result.put(state.uid, state);
+        return result;
+    }
+
+    private static class UidSet {
+        // Sorted local uids and which of them have been seen remotely
+        private final long[] uids;
+        private final BitSet removed;
+        private int size;
+
+        UidSet(List<Long> list) {
+            long[] sorted = new long[list.size()];
+            for (int i = 0; i < sorted.length; i++)
+                sorted[i] = list.get(i);
+            Arrays.sort(sorted);
+
+            int n = 0;
+            for (int i = 0; i < sorted.length; i++)
+                if (n == 0 || sorted[n - 1] != sorted[i])
+                    sorted[n++] = sorted[i];
+
+            this.uids = (n == sorted.length ? sorted : Arrays.copyOf(sorted, n));
+            this.removed = new BitSet(n);
+            this.size = n;
+        }
+
+        boolean contains(long uid) {
+            int i = Arrays.binarySearch(uids, uid);
+            return (i >= 0 && !removed.get(i));
+        }
+
+        boolean remove(long uid) {
+            int i = Arrays.binarySearch(uids, uid);
+            if (i < 0 || removed.get(i))
+                return false;
+            removed.set(i);
+            size--;
+            return true;
+        }
+
+        int size() {
+            return size;
+        }
+
+        long[] toArray() {
+            long[] result = new long[size];
+            int n = 0;
+            for (int i = removed.nextClearBit(0); i < uids.length; i = removed.nextClearBit(i + 1))
+                result[n++] = uids[i];
+            return result;
+        }
+    }
+
     private static class SyncStats {
         long search_ms;
         int flags;
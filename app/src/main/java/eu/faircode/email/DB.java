@@ -9,6 +9,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.text.TextUtils;
+import android.util.LruCache;
 
 import androidx.annotation.NonNull;
 import androidx.lifecycle.Observer;
@@ -42,6 +43,7 @@ import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.mail.Address;
 import javax.mail.internet.InternetAddress;
@@ -71,7 +73,7 @@ import io.requery.android.database.sqlite.SQLiteDatabase;
 // https://developer.android.com/topic/libraries/architecture/room.html
 
 @Database(
-        version = 234,
+        version = 235,
         entities = {
                 EntityIdentity.class,
                 EntityAccount.class,
@@ -84,7 +86,8 @@ import io.requery.android.database.sqlite.SQLiteDatabase;
                 EntityAnswer.class,
                 EntityRule.class,
                 EntitySearch.class,
-                EntityLog.class
+                EntityLog.class,
+                EntityThreadSummary.class
         },
         views = {
                 TupleAccountView.class,
@@ -141,6 +144,17 @@ public abstract class DB extends RoomDatabase {
             "foreign_keys"
     ));
 
+    private static final ExecutorService executorSummary =
+            Helper.getBackgroundExecutor(1, "summary");
+    private static final AtomicBoolean summaryPending = new AtomicBoolean();
+
+    private static final String[] THREAD_SUMMARY_TABLES = new String[]{"message", "folder", "identity"};
+
+    private static final List<String> THREAD_SUMMARY_TRIGGERS = Collections.unmodifiableList(Arrays.asList(
+            "thread_summary_insert", "thread_summary_update", "thread_summary_move", "thread_summary_delete",
+            "thread_summary_folder", "thread_summary_identity"
+    ));
+
     @Override
     public void init(@NonNull DatabaseConfiguration configuration) {
         // https://www.sqlite.org/pragma.html#pragma_wal_autocheckpoint
@@ -371,6 +385,15 @@ public abstract class DB extends RoomDatabase {
                     Log.d("ROOM invalidated=" + TextUtils.join(",", tables));
                 }
             });
+
+            // Only changes of these tables can mark thread summaries
+            final DB db = sInstance;
+            db.getInvalidationTracker().addObserver(new InvalidationTracker.Observer(THREAD_SUMMARY_TABLES) {
+                @Override
+                public void onInvalidated(@NonNull Set<String> tables) {
+                    refreshThreadSummaries(db);
+                }
+            });
         }
 
         return sInstance;
@@ -438,6 +461,15 @@ public abstract class DB extends RoomDatabase {
                         }
 
                         createTriggers(db);
+
+                        // Summaries marked before the app was stopped
+                        db.beginTransaction();
+                        try {
+                            refreshThreadSummaries(db);
+                            db.setTransactionSuccessful();
+                        } finally {
+                            db.endTransaction();
+                        }
                     }
                 });
     }
@@ -486,6 +518,141 @@ public abstract class DB extends RoomDatabase {
                 "  AND OLD.encryption IS NULL" +
                 "  AND NOT ((OLD.disposition = 'inline' OR (OLD.related IS NOT 0 AND OLD.cid IS NOT NULL)) AND OLD.type IN (" + images + "));" +
                 " END");
+
+        // The triggers only mark threads, the summaries are refreshed after the change, see refreshThreadSummaries
+        db.execSQL("CREATE TABLE IF NOT EXISTS `" + EntityThreadSummary.DIRTY_TABLE_NAME + "`" +
+                " (`account` INTEGER NOT NULL" +
+                ", `thread` TEXT NOT NULL" +
+                ", PRIMARY KEY(`account`, `thread`))");
+        for (String trigger : THREAD_SUMMARY_TRIGGERS)
+            db.execSQL("DROP TRIGGER IF EXISTS `" + trigger + "`");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS thread_summary_insert" +
+                " AFTER INSERT ON message" +
+                " WHEN NOT NEW.thread IS NULL" +
+                " BEGIN" +
+                markThreadSummary("NEW") +
+                " END");
+        // Room updates whole entities, so skip updates not changing any summarized column
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS thread_summary_update" +
+                " AFTER UPDATE OF account, folder, identity, thread, msgid, hash," +
+                "  `from`, `to`, sender, avatar, received, total, attachments," +
+                "  ui_seen, ui_flagged, ui_snoozed, ui_hide ON message" +
+                " WHEN NOT NEW.thread IS NULL" +
+                "  AND (OLD.account IS NOT NEW.account" +
+                "  OR OLD.folder IS NOT NEW.folder" +
+                "  OR OLD.identity IS NOT NEW.identity" +
+                "  OR OLD.thread IS NOT NEW.thread" +
+                "  OR OLD.msgid IS NOT NEW.msgid" +
+                "  OR OLD.hash IS NOT NEW.hash" +
+                "  OR OLD.`from` IS NOT NEW.`from`" +
+                "  OR OLD.`to` IS NOT NEW.`to`" +
+                "  OR OLD.sender IS NOT NEW.sender" +
+                "  OR OLD.avatar IS NOT NEW.avatar" +
+                "  OR OLD.received IS NOT NEW.received" +
+                "  OR OLD.total IS NOT NEW.total" +
+                "  OR OLD.attachments IS NOT NEW.attachments" +
+                "  OR OLD.ui_seen IS NOT NEW.ui_seen" +
+                "  OR OLD.ui_flagged IS NOT NEW.ui_flagged" +
+                "  OR (OLD.ui_snoozed IS NULL) IS NOT (NEW.ui_snoozed IS NULL)" +
+                "  OR OLD.ui_hide IS NOT NEW.ui_hide)" +
+                " BEGIN" +
+                markThreadSummary("NEW") +
+                " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS thread_summary_move" +
+                " AFTER UPDATE OF account, thread ON message" +
+                " WHEN NOT OLD.thread IS NULL" +
+                "  AND (OLD.account <> NEW.account OR NEW.thread IS NULL OR OLD.thread <> NEW.thread)" +
+                " BEGIN" +
+                markThreadSummary("OLD") +
+                " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS thread_summary_delete" +
+                " AFTER DELETE ON message" +
+                " WHEN NOT OLD.thread IS NULL" +
+                " BEGIN" +
+                markThreadSummary("OLD") +
+                " END");
+
+        // The drafts and unknown aggregates depend on folder.type and identity.email
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS thread_summary_folder" +
+                " AFTER UPDATE OF type ON folder" +
+                " WHEN OLD.type IS NOT NEW.type" +
+                " BEGIN" +
+                markThreadSummaries("folder = NEW.id") +
+                " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS thread_summary_identity" +
+                " AFTER UPDATE OF email ON identity" +
+                " WHEN OLD.email IS NOT NEW.email" +
+                " BEGIN" +
+                markThreadSummaries("identity = NEW.id") +
+                " END");
+    }
+
+    private static String markThreadSummary(String row) {
+        return "  INSERT OR IGNORE INTO " + EntityThreadSummary.DIRTY_TABLE_NAME + " (account, thread)" +
+                "  VALUES (" + row + ".account, " + row + ".thread);";
+    }
+
+    private static String markThreadSummaries(String where) {
+        // All threads with at least one message matching the condition
+        return "  INSERT OR IGNORE INTO " + EntityThreadSummary.DIRTY_TABLE_NAME + " (account, thread)" +
+                "  SELECT DISTINCT account, thread FROM message" +
+                "  WHERE " + where + " AND NOT thread IS NULL;";
+    }
+
+    private static void refreshThreadSummaries(DB db) {
+        // Coalesce the invalidations of a burst of message changes
+        if (summaryPending.getAndSet(true))
+            return;
+
+        executorSummary.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    summaryPending.set(false);
+
+                    // Don't take the write lock when there is nothing to refresh, which is usually the case
+                    SupportSQLiteDatabase sdb = db.getOpenHelper().getWritableDatabase();
+                    if (!hasThreadSummaryMarks(sdb))
+                        return;
+
+                    db.runInTransaction(new Runnable() {
+                        @Override
+                        public void run() {
+                            refreshThreadSummaries(sdb);
+                        }
+                    });
+                } catch (Throwable ex) {
+                    Log.e(ex);
+                }
+            }
+        });
+    }
+
+    private static boolean hasThreadSummaryMarks(SupportSQLiteDatabase db) {
+        try (Cursor cursor = db.query("SELECT 1 FROM " + EntityThreadSummary.DIRTY_TABLE_NAME + " LIMIT 1")) {
+            return cursor.moveToNext();
+        }
+    }
+
+    private static void refreshThreadSummaries(SupportSQLiteDatabase db) {
+        // Recompute each changed thread once, instead of once for every changed message
+        if (!hasThreadSummaryMarks(db))
+            return;
+
+        String dirty = EntityThreadSummary.DIRTY_TABLE_NAME;
+        db.execSQL("DELETE FROM " + EntityThreadSummary.TABLE_NAME +
+                " WHERE account IN (SELECT account FROM " + dirty + ")" +
+                " AND thread IN (SELECT thread FROM " + dirty + ")" +
+                " AND EXISTS (SELECT 1 FROM " + dirty + " AS d" +
+                "  WHERE d.account = " + EntityThreadSummary.TABLE_NAME + ".account" +
+                "  AND d.thread = " + EntityThreadSummary.TABLE_NAME + ".thread)");
+        db.execSQL("INSERT INTO " + EntityThreadSummary.TABLE_NAME + " (" + EntityThreadSummary.COLUMNS + ") " +
+                EntityThreadSummary.getSelect("thread IN (SELECT thread FROM " + dirty + ")" +
+                        " AND EXISTS (SELECT 1 FROM " + dirty + " AS d" +
+                        "  WHERE d.account = message.account" +
+                        "  AND d.thread = message.thread)"));
+        db.execSQL("DELETE FROM " + dirty);
     }
 
     private static void logMigration(int startVersion, int endVersion) {
@@ -2339,6 +2506,38 @@ public abstract class DB extends RoomDatabase {
                                 " AND NOT max_messages IS NULL" +
                                 " AND NOT leave_on_device");
                     }
+                }).addMigrations(new Migration(234, 235) {
+                    @Override
+                    public void migrate(@NonNull SupportSQLiteDatabase db) {
+                        logMigration(startVersion, endVersion);
+                        db.execSQL("CREATE TABLE IF NOT EXISTS `thread_summary`" +
+                                " (`account` INTEGER NOT NULL" +
+                                ", `thread` TEXT NOT NULL" +
+                                ", `messages` INTEGER NOT NULL" +
+                                ", `unseen` INTEGER NOT NULL" +
+                                ", `unflagged` INTEGER NOT NULL" +
+                                ", `drafts` INTEGER NOT NULL" +
+                                ", `visible` INTEGER NOT NULL" +
+                                ", `visible_unseen` INTEGER NOT NULL" +
+                                ", `unknown` INTEGER NOT NULL" +
+                                ", `snoozed` INTEGER NOT NULL" +
+                                ", `attachments` INTEGER NOT NULL" +
+                                ", `total` INTEGER" +
+                                ", `senders` TEXT" +
+                                ", `recipients` TEXT" +
+                                ", PRIMARY KEY(`account`, `thread`))");
+                        db.execSQL("INSERT INTO `thread_summary` (" + EntityThreadSummary.COLUMNS + ") " +
+                                EntityThreadSummary.getSelect(null));
+                    }
+                }).addMigrations(new Migration(235, 234) {
+                    @Override
+                    public void migrate(@NonNull SupportSQLiteDatabase db) {
+                        logMigration(startVersion, endVersion);
+                        for (String trigger : THREAD_SUMMARY_TRIGGERS)
+                            db.execSQL("DROP TRIGGER IF EXISTS `" + trigger + "`");
+                        db.execSQL("DROP TABLE IF EXISTS `thread_summary_dirty`");
+                        db.execSQL("DROP TABLE IF EXISTS `thread_summary`");
+                    }
                 }).addMigrations(new Migration(234, 233) {
                     @Override
                     public void migrate(@NonNull SupportSQLiteDatabase db) {
@@ -2422,6 +2621,8 @@ public abstract class DB extends RoomDatabase {
     }
 
     public static class Converters {
+        private static final int ADDRESS_CACHE_SIZE = 256 * 1024; // characters
+
         @TypeConverter
         public static String[] toStringArray(String value) {
             if (value == null)
@@ -2474,27 +2675,51 @@ public abstract class DB extends RoomDatabase {
             return jaddresses.toString();
         }
 
+        // Raw column value > address/personal pairs
+        // Callers modify addresses, so new address objects are created for every row
+        private static final LruCache<String, String[]> addressCache = new LruCache<String, String[]>(ADDRESS_CACHE_SIZE) {
+            @Override
+            protected int sizeOf(String key, String[] value) {
+                return key.length();
+            }
+        };
+
         @TypeConverter
         public static Address[] decodeAddresses(String json) {
             if (json == null)
                 return null;
 
-            List<Address> result = new ArrayList<>();
-            try {
-                JSONArray jroot = new JSONArray(json);
-                for (int i = 0; i < jroot.length(); i++) {
-                    Object item = jroot.get(i);
-                    if (jroot.get(i) instanceof JSONArray)
-                        for (int j = 0; j < ((JSONArray) item).length(); j++)
-                            result.add(InternetAddressJson.from((JSONObject) ((JSONArray) item).get(j)));
-                    else
-                        result.add(InternetAddressJson.from((JSONObject) item));
+            String[] pairs = addressCache.get(json);
+            if (pairs == null) {
+                List<String> result = new ArrayList<>();
+                try {
+                    JSONArray jroot = new JSONArray(json);
+                    for (int i = 0; i < jroot.length(); i++) {
+                        Object item = jroot.get(i);
+                        if (jroot.get(i) instanceof JSONArray)
+                            for (int j = 0; j < ((JSONArray) item).length(); j++)
+                                addPair(result, (JSONObject) ((JSONArray) item).get(j));
+                        else
+                            addPair(result, (JSONObject) item);
+                    }
+                } catch (Throwable ex) {
+                    // Compose can store invalid addresses
+                    Log.w(ex);
                 }
-            } catch (Throwable ex) {
-                // Compose can store invalid addresses
-                Log.w(ex);
+                pairs = result.toArray(new String[0]);
+                addressCache.put(json, pairs);
             }
-            return result.toArray(new Address[0]);
+
+            Address[] result = new Address[pairs.length / 2];
+            for (int i = 0; i < result.length; i++)
+                result[i] = InternetAddressJson.from(pairs[2 * i], pairs[2 * i + 1]);
+            return result;
+        }
+
+        private static void addPair(List<String> pairs, JSONObject jaddress) {
+            String personal = jaddress.optString("personal");
+            pairs.add(jaddress.optString("address", null));
+            pairs.add(TextUtils.isEmpty(personal) ? null : personal);
         }
 
         @TypeConverter
@@ -44,6 +44,9 @@ public interface DaoLog {
     @Insert
     long insertLog(EntityLog log);
 
+    @Insert
+    void insertLogs(List<EntityLog> logs);
+
     @Query("DELETE FROM log" +
             " WHERE id IN (SELECT id FROM log" +
             " WHERE time < :before ORDER BY time LIMIT :limit)")
@@ -123,6 +123,68 @@ public interface DaoMessage {
             boolean found,
             boolean debug);
 
+    // Threaded unified list using the aggregates maintained in thread_summary
+    // Messages without a thread have no summary and are aggregated on their own
+    @Transaction
+    @SuppressWarnings(RoomWarnings.CURSOR_MISMATCH)
+    @Query("SELECT message.*" +
+            ", account.pop AS accountProtocol, account.name AS accountName, account.category AS accountCategory, COALESCE(identity.color, folder.color, account.color) AS accountColor" +
+            ", account.notify AS accountNotify, account.leave_deleted AS accountLeaveDeleted, account.auto_seen AS accountAutoSeen" +
+            ", folder.name AS folderName, folder.color AS folderColor, folder.display AS folderDisplay, folder.type AS folderType, folder.unified AS folderUnified, folder.read_only AS folderReadOnly" +
+            ", IFNULL(identity.display, identity.name) AS identityName, identity.email AS identityEmail, identity.color AS identityColor, identity.synchronize AS identitySynchronize" +
+            ", '[' || IFNULL(summary.senders, message.`from`) || ']' AS senders" +
+            ", '[' || IFNULL(summary.recipients, message.`to`) || ']' AS recipients" +
+            ", IFNULL(summary.messages, 1) AS count" +
+            ", IFNULL(summary.unseen, 1 - message.ui_seen) AS unseen" +
+            ", IFNULL(summary.unflagged, 1 - message.ui_flagged) AS unflagged" +
+            ", IFNULL(summary.drafts, folder.type = '" + EntityFolder.DRAFTS + "') AS drafts" +
+            ", IFNULL(summary.visible, 1) AS visible" +
+            ", IFNULL(summary.visible_unseen, 1 - message.ui_seen) AS visible_unseen" +
+            ", IFNULL(summary.attachments, message.attachments) AS totalAttachments" +
+            ", IFNULL(summary.total, message.total) AS totalSize" +
+            ", message.priority AS ui_priority" +
+            ", message.importance AS ui_importance" +
+            ", MAX(message.received) AS dummy" +
+            " FROM message" +
+            " LEFT JOIN thread_summary AS summary ON summary.account = message.account AND summary.thread = message.thread" +
+            " JOIN account_view AS account ON account.id = message.account" +
+            " LEFT JOIN identity_view AS identity ON identity.id = message.identity" +
+            " JOIN folder_view AS folder ON folder.id = message.folder" +
+            " WHERE account.`synchronize`" +
+            " AND ((:type IS NULL AND folder.unified) OR (:type IS NOT NULL AND folder.type = :type))" +
+            " AND NOT message.ui_hide" +
+            " GROUP BY account.id, CASE WHEN message.thread IS NULL THEN message.id ELSE message.thread END" +
+            " HAVING (NOT :filter_seen OR IFNULL(summary.unseen, 1 - message.ui_seen) > 0)" +
+            " AND (NOT :filter_unflagged OR IFNULL(summary.messages - summary.unflagged, message.ui_flagged) > 0)" +
+            " AND (NOT :filter_unknown OR IFNULL(summary.unknown, message.avatar IS NOT NULL AND message.sender <> identity.email) > 0)" +
+            " AND (NOT :filter_snoozed OR message.ui_snoozed IS NULL OR " + is_drafts + ")" +
+            " AND (NOT :filter_deleted OR NOT message.ui_deleted)" +
+            " AND (:filter_language IS NULL OR EXISTS" +
+            "  (SELECT * FROM message m" +
+            "   WHERE m.account = message.account" +
+            "   AND (m.thread = message.thread OR (message.thread IS NULL AND m.id = message.id))" +
+            "   AND NOT m.ui_hide" +
+            "   AND m.language = :filter_language))" +
+            " ORDER BY -IFNULL(message.importance, 1)" +
+            ", CASE WHEN :group_category THEN account.category ELSE '' END COLLATE NOCASE" +
+            ", CASE" +
+            "   WHEN 'unread' = :sort THEN IFNULL(summary.unseen, 1 - message.ui_seen) = 0" +
+            "   WHEN 'starred' = :sort THEN IFNULL(summary.messages - summary.unflagged, message.ui_flagged) = 0" +
+            "   WHEN 'priority' = :sort THEN -IFNULL(message.priority, 1)" +
+            "   WHEN 'sender' = :sort THEN LOWER(message.sender)" +
+            "   WHEN 'subject' = :sort THEN LOWER(message.subject)" +
+            "   WHEN 'size' = :sort THEN -IFNULL(summary.total, message.total)" +
+            "   WHEN 'attachments' = :sort THEN -IFNULL(summary.attachments, message.attachments)" +
+            "   WHEN 'snoozed' = :sort THEN IFNULL(summary.snoozed, message.ui_snoozed IS NOT NULL) = 0" +
+            "   ELSE 0" +
+            "  END" +
+            ", CASE WHEN :ascending THEN message.received ELSE -message.received END")
+    DataSource.Factory<Integer, TupleMessageEx> pagedUnifiedThreads(
+            String type,
+            boolean group_category,
+            String sort, boolean ascending,
+            boolean filter_seen, boolean filter_unflagged, boolean filter_unknown, boolean filter_snoozed, boolean filter_deleted, String filter_language);
+
     @Transaction
     @SuppressWarnings(RoomWarnings.CURSOR_MISMATCH)
     @Query("SELECT message.*" +
@@ -306,6 +368,11 @@ public interface DaoMessage {
             " WHERE id = :id")
     EntityMessage getMessage(long id);
 
+    @Query("SELECT *" +
+            " FROM message" +
+            " WHERE id IN (:ids)")
+    List<EntityMessage> getMessages(List<Long> ids);
+
     @Query("SELECT *" +
             " FROM message" +
             " WHERE folder = :folder" +
@@ -375,6 +442,27 @@ public interface DaoMessage {
             Long after, Long before,
             int limit, int offset);
 
+    @Query("SELECT message.id, account, thread, (:find IS NULL" +
+            " OR (:senders AND `from` LIKE :find COLLATE NOCASE)" +
+            " OR (:recipients AND `to` LIKE :find COLLATE NOCASE)" +
+            " OR (:recipients AND `cc` LIKE :find COLLATE NOCASE)" +
+            " OR (:recipients AND `bcc` LIKE :find COLLATE NOCASE)" +
+            " OR (:subject AND `subject` LIKE :find COLLATE NOCASE)" +
+            " OR (:keywords AND `keywords` LIKE :find COLLATE NOCASE)" +
+            " OR (:notes AND `notes` LIKE :find COLLATE NOCASE)) AS matched" +
+            " FROM message" +
+            " WHERE message.id IN (:ids)" +
+            " AND (NOT :unseen OR NOT ui_seen)" +
+            " AND (NOT :flagged OR ui_flagged)" +
+            " AND (NOT :hidden OR NOT ui_snoozed IS NULL)" +
+            " AND (NOT :encrypted OR encrypt > 0)" +
+            " AND (NOT :with_attachments OR attachments > 0)" +
+            " AND NOT message.folder IN (:exclude)")
+    List<TupleMatch> matchMessagesFts(
+            List<Long> ids, long[] exclude, String find,
+            boolean senders, boolean recipients, boolean subject, boolean keywords, boolean notes,
+            boolean unseen, boolean flagged, boolean hidden, boolean encrypted, boolean with_attachments);
+
     @Query("SELECT id" +
             " FROM message" +
             " WHERE content" +
@@ -618,6 +706,11 @@ public interface DaoMessage {
             " ORDER BY uid")
     List<Long> getUids(long folder, Long received);
 
+    @Query("SELECT id, uid, ui_hide FROM message" +
+            " WHERE folder = :folder" +
+            " AND uid IN (:uids)")
+    List<TupleUidState> getUidStates(long folder, List<Long> uids);
+
     @Query("SELECT * FROM message" +
             " WHERE folder = :folder" +
             " AND (:received IS NULL OR received >= :received)" +
@@ -687,6 +780,12 @@ public interface DaoMessage {
             " AND (:since IS NULL OR received >= :since)")
     int updateMessageThread(long account, String old, String thread, Long since);
 
+    @Query("UPDATE message SET thread = :thread" +
+            " WHERE account = :account" +
+            " AND thread IN (:olds) AND NOT (thread IS :thread)" +
+            " AND (:since IS NULL OR received >= :since)")
+    int updateMessageThreads(long account, List<String> olds, String thread, Long since);
+
     @Query("UPDATE message SET uid = :uid WHERE id = :id AND NOT (uid IS :uid)")
     int setMessageUid(long id, Long uid);
 
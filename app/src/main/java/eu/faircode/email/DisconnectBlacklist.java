@@ -106,6 +106,9 @@ public class DisconnectBlacklist {
             long elapsed = SystemClock.elapsedRealtime() - start;
             Log.i("Disconnect domains=" + map.size() + " elapsed=" + elapsed + " ms");
         }
+
+        // Cached bodies might have images removed based on the previous list
+        AdapterMessage.clearBodyCache();
     }
 
     static void download(Context context) throws IOException, JSONException {
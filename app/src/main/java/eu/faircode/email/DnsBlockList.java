@@ -23,10 +23,16 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.net.Uri;
 import android.text.TextUtils;
+import android.util.LruCache;
 
 import androidx.core.net.MailTo;
 import androidx.preference.PreferenceManager;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
@@ -35,10 +41,17 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Hashtable;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 import javax.mail.Address;
 import javax.mail.internet.InternetAddress;
@@ -87,13 +100,31 @@ public class DnsBlockList {
             })
     ));
 
+    private static final int CACHE_SIZE = 2000; // entries
     private static final long CACHE_EXPIRY_AFTER = 3600 * 1000L; // milliseconds
-    private static final Map<String, CacheEntry> cache = new Hashtable<>();
+    private static final long CACHE_EXPIRY_MIN = 60 * 1000L; // milliseconds
+    private static final long CACHE_EXPIRY_MAX = 24 * 3600 * 1000L; // milliseconds
+    private static final long CACHE_SAVE_INTERVAL = 60 * 1000L; // milliseconds
+    private static final long LOOKUP_DEADLINE = 15 * 1000L; // milliseconds
+    private static final String CACHE_FILE = "dnsbl.json";
+
+    private static boolean loaded = false;
+    private static long lastSave = 0;
+    private static final LruCache<String, CacheEntry> cache = new LruCache<>(CACHE_SIZE);
+    private static final Map<String, Future<CacheEntry>> pending = new HashMap<>();
+
+    private static final ExecutorService executor =
+            Helper.getBackgroundExecutor(0, "dnsbl");
 
-    static void clearCache() {
+    static void clearCache(Context context) {
         Log.i("isJunk clear cache");
         synchronized (cache) {
-            cache.clear();
+            cache.evictAll();
+            loaded = true;
+            lastSave = 0;
+            File file = new File(context.getCacheDir(), CACHE_FILE);
+            if (file.exists())
+                file.delete();
         }
     }
 
@@ -104,7 +135,7 @@ public class DnsBlockList {
             prefs.edit().remove("blocklist." + blocklist.name).apply();
         else
             prefs.edit().putBoolean("blocklist." + blocklist.name, enabled).apply();
-        clearCache();
+        clearCache(context);
     }
 
     static boolean isEnabled(Context context, BlockList blocklist) {
@@ -121,7 +152,7 @@ public class DnsBlockList {
         for (BlockList blocklist : BLOCK_LISTS)
             editor.remove("blocklist." + blocklist.name);
         editor.apply();
-        clearCache();
+        clearCache(context);
     }
 
     static List<BlockList> getListsAvailable() {
@@ -194,32 +225,61 @@ public class DnsBlockList {
         return isJunk(context, domain, false, BLOCK_LISTS);
     }
 
-    private static boolean isJunk(Context context, String host, boolean numeric, List<BlockList> blocklists) {
-        synchronized (cache) {
-            CacheEntry entry = cache.get(host);
-            if (entry != null && !entry.isExpired())
-                return entry.isJunk();
+    private static boolean isJunk(final Context context, final String host, final boolean numeric, final List<BlockList> blocklists) {
+        load(context);
+
+        CacheEntry entry = cache.get(host);
+        if (entry != null && !entry.isExpired())
+            return entry.isJunk();
+
+        // Coalesce concurrent lookups of the same host
+        FutureTask<CacheEntry> task = null;
+        Future<CacheEntry> future;
+        synchronized (pending) {
+            future = pending.get(host);
+            if (future == null) {
+                task = new FutureTask<>(new Callable<CacheEntry>() {
+                    @Override
+                    public CacheEntry call() {
+                        CacheEntry entry = lookup(context, host, numeric, blocklists);
+                        cache.put(host, entry);
+                        return entry;
+                    }
+                });
+                pending.put(host, task);
+                future = task;
+            }
         }
 
-        boolean blocked = false;
-        for (BlockList blocklist : blocklists)
-            if (isEnabled(context, blocklist) &&
-                    blocklist.numeric == numeric &&
-                    isJunk(host, blocklist)) {
-                blocked = true;
-                break;
+        if (task != null)
+            try {
+                task.run();
+                save(context);
+            } finally {
+                synchronized (pending) {
+                    pending.remove(host);
+                }
             }
 
-        synchronized (cache) {
-            cache.put(host, new CacheEntry(blocked));
+        try {
+            return future.get().isJunk();
+        } catch (ExecutionException | InterruptedException ex) {
+            Log.w(ex);
+            return false;
         }
-
-        return blocked;
     }
 
-    private static boolean isJunk(String host, BlockList blocklist) {
-        try {
-            if (blocklist.numeric) {
+    private static CacheEntry lookup(final Context context, String host, boolean numeric, List<BlockList> blocklists) {
+        List<BlockList> enabled = new ArrayList<>();
+        for (BlockList blocklist : blocklists)
+            if (isEnabled(context, blocklist) && blocklist.numeric == numeric)
+                enabled.add(blocklist);
+        if (enabled.size() == 0)
+            return new CacheEntry(false, CACHE_EXPIRY_AFTER);
+
+        List<String> prefixes = new ArrayList<>();
+        if (numeric)
+            try {
                 long start = new Date().getTime();
                 InetAddress[] addresses = InetAddress.getAllByName(host);
                 long elapsed = new Date().getTime() - start;
@@ -232,74 +292,182 @@ public class DnsBlockList {
                         Log.i("isJunk local=" + addr);
                         continue;
                     }
-                    try {
-                        StringBuilder lookup = new StringBuilder();
-                        if (addr instanceof Inet4Address) {
-                            byte[] a = addr.getAddress();
-                            for (int i = 3; i >= 0; i--)
-                                lookup.append(a[i] & 0xff).append('.');
-                        } else if (addr instanceof Inet6Address) {
-                            byte[] a = addr.getAddress();
-                            for (int i = 15; i >= 0; i--) {
-                                int b = a[i] & 0xff;
-                                lookup.append(String.format("%01x", b & 0xf)).append('.');
-                                lookup.append(String.format("%01x", b >> 4)).append('.');
-                            }
+                    StringBuilder lookup = new StringBuilder();
+                    if (addr instanceof Inet4Address) {
+                        byte[] a = addr.getAddress();
+                        for (int i = 3; i >= 0; i--)
+                            lookup.append(a[i] & 0xff).append('.');
+                    } else if (addr instanceof Inet6Address) {
+                        byte[] a = addr.getAddress();
+                        for (int i = 15; i >= 0; i--) {
+                            int b = a[i] & 0xff;
+                            lookup.append(Character.forDigit(b & 0xf, 16)).append('.');
+                            lookup.append(Character.forDigit(b >> 4, 16)).append('.');
                         }
+                    }
+                    prefixes.add(lookup.toString());
+                }
+            } catch (Throwable ex) {
+                Log.w(ex);
+                return new CacheEntry(false, CACHE_EXPIRY_MIN);
+            }
+        else
+            prefixes.add(host + ".");
+
+        // Query all lists in parallel
+        ExecutorCompletionService<CacheEntry> ecs = new ExecutorCompletionService<>(executor);
+        List<Future<CacheEntry>> futures = new ArrayList<>();
+        for (final BlockList blocklist : enabled)
+            for (String prefix : prefixes) {
+                final String lookup = prefix + blocklist.address;
+                futures.add(ecs.submit(new Callable<CacheEntry>() {
+                    @Override
+                    public CacheEntry call() {
+                        return isJunk(context, lookup, blocklist.responses);
+                    }
+                }));
+            }
 
-                        lookup.append(blocklist.address);
+        boolean complete = true;
+        CacheEntry result = null;
+        long deadline = new Date().getTime() + LOOKUP_DEADLINE;
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                long wait = deadline - new Date().getTime();
+                Future<CacheEntry> future = (wait > 0 ? ecs.poll(wait, TimeUnit.MILLISECONDS) : null);
+                if (future == null) {
+                    Log.w("isJunk deadline host=" + host);
+                    complete = false;
+                    break;
+                }
 
-                        if (isJunk(lookup.toString(), blocklist.responses))
-                            return true;
-                    } catch (Throwable ex) {
-                        Log.w(ex);
+                try {
+                    CacheEntry entry = future.get();
+                    if (entry == null) {
+                        complete = false;
+                        continue;
                     }
+                    if (result == null || entry.isJunk() || entry.expires < result.expires)
+                        result = entry;
+                    if (entry.isJunk())
+                        break;
+                } catch (ExecutionException ex) {
+                    Log.w(ex);
+                    complete = false;
                 }
-            } else {
-                long start = new Date().getTime();
-                String lookup = host + "." + blocklist.address;
-                boolean junk = isJunk(lookup, blocklist.responses);
-                long elapsed = new Date().getTime() - start;
-                Log.i("isJunk" + " " + lookup + "=" + junk + " elapsed=" + elapsed);
-                return junk;
             }
-        } catch (Throwable ex) {
+        } catch (InterruptedException ex) {
             Log.w(ex);
+            complete = false;
+        } finally {
+            for (Future<CacheEntry> future : futures)
+                future.cancel(true);
         }
 
-        return false;
+        if (result != null && result.isJunk())
+            return result;
+        if (!complete || result == null)
+            return new CacheEntry(false, complete ? CACHE_EXPIRY_AFTER : CACHE_EXPIRY_MIN);
+        return result;
     }
 
-    private static boolean isJunk(String lookup, InetAddress[] responses) {
+    private static CacheEntry isJunk(Context context, String lookup, InetAddress[] responses) {
         long start = new Date().getTime();
-        InetAddress result;
+        InetAddress result = null;
+        boolean blocked = false;
+        Long ttl = null;
         try {
             // Possibly blocked
-            result = InetAddress.getByName(lookup);
-        } catch (UnknownHostException ignored) {
-            // Not blocked
-            result = null;
-        }
-        long elapsed = new Date().getTime() - start;
-
-        boolean blocked = false;
-        if (result != null && responses.length > 0) {
-            for (InetAddress response : responses)
-                if (response.equals(result)) {
+            DnsHelper.DnsRecord[] records = DnsHelper.lookup(context, lookup, "a");
+            if (records.length == 0) {
+                // Lookup failed or timed out, not the same as not listed
+                Log.w("isJunk lookup=" + lookup + " failed" +
+                        " elapsed=" + (new Date().getTime() - start));
+                return null;
+            }
+            for (DnsHelper.DnsRecord record : records) {
+                InetAddress addr = InetAddress.getByName(record.name);
+                if (record.ttl != null)
+                    ttl = (ttl == null ? record.ttl * 1000L : Math.min(ttl, record.ttl * 1000L));
+                if (responses.length == 0)
                     blocked = true;
+                else
+                    for (InetAddress response : responses)
+                        if (response.equals(addr)) {
+                            blocked = true;
+                            break;
+                        }
+                if (blocked) {
+                    result = addr;
                     break;
                 }
-            if (!blocked)
-                result = null;
+            }
+        } catch (UnknownHostException ignored) {
+            // NXDOMAIN: not blocked
         }
+        long elapsed = new Date().getTime() - start;
 
         Log.w("isJunk" +
                 " lookup=" + lookup +
                 " result=" + (result == null ? null : result.getHostAddress()) +
                 " blocked=" + blocked +
+                " ttl=" + ttl +
                 " elapsed=" + elapsed);
 
-        return blocked;
+        // Honour the record TTL, clamped by the cache entry
+        return new CacheEntry(blocked, ttl == null ? CACHE_EXPIRY_AFTER : ttl);
+    }
+
+    private static void load(Context context) {
+        synchronized (cache) {
+            if (loaded)
+                return;
+            loaded = true;
+
+            File file = new File(context.getCacheDir(), CACHE_FILE);
+            if (!file.exists())
+                return;
+
+            try {
+                JSONArray jcache = new JSONArray(Helper.readText(file));
+                for (int i = 0; i < jcache.length(); i++) {
+                    JSONObject jentry = jcache.getJSONObject(i);
+                    CacheEntry entry = CacheEntry.fromJSON(jentry);
+                    if (!entry.isExpired())
+                        cache.put(jentry.getString("host"), entry);
+                }
+                Log.i("isJunk loaded cache=" + cache.size());
+            } catch (Throwable ex) {
+                Log.w(ex);
+                file.delete();
+            }
+        }
+    }
+
+    private static void save(Context context) {
+        long now = new Date().getTime();
+        Map<String, CacheEntry> snapshot;
+        synchronized (cache) {
+            if (lastSave + CACHE_SAVE_INTERVAL > now)
+                return;
+            lastSave = now;
+            snapshot = cache.snapshot();
+        }
+
+        try {
+            JSONArray jcache = new JSONArray();
+            for (Map.Entry<String, CacheEntry> kv : snapshot.entrySet())
+                if (!kv.getValue().isExpired()) {
+                    JSONObject jentry = kv.getValue().toJSON();
+                    jentry.put("host", kv.getKey());
+                    jcache.put(jentry);
+                }
+            File file = new File(context.getCacheDir(), CACHE_FILE);
+            Helper.writeText(file, jcache.toString());
+            Log.i("isJunk saved cache=" + jcache.length());
+        } catch (Throwable ex) {
+            Log.w(ex);
+        }
     }
 
     private static String getFromHost(String received) {
@@ -331,21 +499,35 @@ public class DnsBlockList {
     }
 
     private static class CacheEntry {
-        private final long time;
+        private long expires;
         private final boolean blocked;
 
-        CacheEntry(boolean blocked) {
-            this.time = new Date().getTime();
+        CacheEntry(boolean blocked, long ttl) {
+            this.expires = new Date().getTime() +
+                    Math.max(CACHE_EXPIRY_MIN, Math.min(ttl, CACHE_EXPIRY_MAX));
             this.blocked = blocked;
         }
 
         boolean isExpired() {
-            return (new Date().getTime() - this.time) > CACHE_EXPIRY_AFTER;
+            return (new Date().getTime() > this.expires);
         }
 
         boolean isJunk() {
             return blocked;
         }
+
+        JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("blocked", blocked);
+            json.put("expires", expires);
+            return json;
+        }
+
+        static CacheEntry fromJSON(JSONObject json) throws JSONException {
+            CacheEntry entry = new CacheEntry(json.getBoolean("blocked"), 0);
+            entry.expires = json.getLong("expires");
+            return entry;
+        }
     }
 
     static class BlockList {
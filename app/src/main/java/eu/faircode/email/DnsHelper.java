@@ -35,6 +35,7 @@ import org.xbill.DNS.Lookup;
 import org.xbill.DNS.MXRecord;
 import org.xbill.DNS.Message;
 import org.xbill.DNS.Record;
+import org.xbill.DNS.Rcode;
 import org.xbill.DNS.SOARecord;
 import org.xbill.DNS.SRVRecord;
 import org.xbill.DNS.SimpleResolver;
@@ -136,7 +137,8 @@ public class DnsHelper {
                                     @Override
                                     public void onAnswer(@NonNull byte[] answer, int rcode) {
                                         try {
-                                            if (rcode == 0)
+                                            // Let the lookup report NXDOMAIN as host not found, not as a failure
+                                            if (rcode == Rcode.NOERROR || rcode == Rcode.NXDOMAIN)
                                                 result = new Message(answer);
                                             else
                                                 ex = new IOException("rcode=" + rcode);
@@ -213,10 +215,10 @@ public class DnsHelper {
                                 result.add(new DnsRecord(content.toString(), 0));
                     } else if (record instanceof ARecord) {
                         ARecord a = (ARecord) record;
-                        result.add(new DnsRecord(a.getAddress().getHostAddress()));
+                        result.add(new DnsRecord(a.getAddress().getHostAddress(), a.getTTL()));
                     } else if (record instanceof AAAARecord) {
                         AAAARecord aaaa = (AAAARecord) record;
-                        result.add(new DnsRecord(aaaa.getAddress().getHostAddress()));
+                        result.add(new DnsRecord(aaaa.getAddress().getHostAddress(), aaaa.getTTL()));
                     } else
                         throw new IllegalArgumentException(record.getClass().getName());
                 }
@@ -265,11 +267,17 @@ public class DnsHelper {
     static class DnsRecord {
         String name;
         Integer port;
+        Long ttl; // seconds
 
         DnsRecord(String name) {
             this.name = name;
         }
 
+        DnsRecord(String name, long ttl) {
+            this.name = name;
+            this.ttl = ttl;
+        }
+
         DnsRecord(String name, int port) {
             this.name = name;
             this.port = port;
@@ -1128,7 +1128,7 @@ public class EmailProvider implements Parcelable {
                                 } catch (Throwable ex) {
                                     // Typical:
                                     //   javax.net.ssl.SSLException: Unable to parse TLS packet header
-                                    EntityLog.log(context, "Handshake " + address + ": " + Log.formatThrowable(ex));
+                                    EntityLog.error(context, "Handshake " + address + ": " + Log.formatThrowable(ex));
                                 } finally {
                                     try {
                                         if (sslSocket != null) {
@@ -1146,7 +1146,7 @@ public class EmailProvider implements Parcelable {
                                 // Typical:
                                 //   java.net.ConnectException: failed to connect to ...
                                 //     android.system.ErrnoException: isConnected failed: ECONNREFUSED (Connection refused)
-                                EntityLog.log(context, "Unreachable " + address + ": " + Log.formatThrowable(ex));
+                                EntityLog.error(context, "Unreachable " + address + ": " + Log.formatThrowable(ex));
 
                                 // Skip other addresses
                                 if (ex instanceof ConnectException &&
@@ -1160,7 +1160,7 @@ public class EmailProvider implements Parcelable {
                         // Typical:
                         //   java.net.UnknownHostException: Unable to resolve host
                         //     android.system.GaiException: android_getaddrinfo failed: EAI_NODATA (No address associated with hostname)
-                        EntityLog.log(context, "Error " + this + ": " + Log.formatThrowable(ex));
+                        EntityLog.error(context, "Error " + this + ": " + Log.formatThrowable(ex));
                         return false;
                     }
                 }
@@ -289,6 +289,7 @@ public class EmailService implements AutoCloseable {
             properties.put("mail.smtp.starttls.required", Boolean.toString(starttls && !insecure));
 
             properties.put("mail." + protocol + ".auth", "true");
+            properties.put("mail." + protocol + ".pipelining", "true");
 
         } else
             throw new NoSuchProviderException(protocol);
@@ -317,7 +318,14 @@ public class EmailService implements AutoCloseable {
 
     // https://tools.ietf.org/html/rfc3461
     void setDsnNotify(String what) {
-        properties.put("mail." + protocol + ".dsn.notify", what);
+        if (what == null)
+            properties.remove("mail." + protocol + ".dsn.notify");
+        else
+            properties.put("mail." + protocol + ".dsn.notify", what);
+    }
+
+    void setUseRset(boolean value) {
+        properties.put("mail." + protocol + ".userset", Boolean.toString(value));
     }
 
     void setReporter(TraceOutputStream.IReport reporter) {
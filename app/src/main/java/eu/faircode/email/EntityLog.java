@@ -21,6 +21,7 @@ package eu.faircode.email;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Looper;
 
 import androidx.annotation.NonNull;
 import androidx.core.content.ContextCompat;
@@ -29,9 +30,13 @@ import androidx.room.Entity;
 import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 @Entity(
         tableName = EntityLog.TABLE_NAME,
@@ -45,12 +50,17 @@ public class EntityLog {
     static final String TABLE_NAME = "log";
 
     private static boolean ok = true;
-    private static long count = 0;
+    private static boolean scheduled = false;
+    private static boolean requested = false;
     private static Long last_cleanup = null;
+    private static final List<EntityLog> pending = new ArrayList<>();
 
     private static final long LOG_CLEANUP_INTERVAL = 3600 * 1000L; // milliseconds
     private static final long LOG_KEEP_DURATION = 12 * 3600 * 1000L; // milliseconds
     private static final int LOG_DELETE_BATCH_SIZE = 50;
+    private static final long LOG_FLUSH_DELAY = 1000L; // milliseconds
+    private static final int LOG_FLUSH_SIZE = 100;
+    private static final long LOG_FLUSH_TIMEOUT = 2000L; // milliseconds
 
     @PrimaryKey(autoGenerate = true)
     public Long id;
@@ -66,8 +76,8 @@ public class EntityLog {
 
     enum Type {General, Statistics, Scheduling, Network, Account, Protocol, Classification, Notification, Rules, Debug}
 
-    private static final ExecutorService executor =
-            Helper.getBackgroundExecutor(1, "log");
+    private static final ScheduledExecutorService executor =
+            Helper.getBackgroundScheduledExecutor("log");
 
     static void log(final Context context, String data) {
         log(context, Type.General, data);
@@ -107,6 +117,25 @@ public class EntityLog {
     }
 
     static void log(final Context context, @NonNull Type type, Long account, Long folder, Long message, String data) {
+        log(context, type, account, folder, message, data, false);
+    }
+
+    static void error(final Context context, String data) {
+        log(context, Type.General, null, null, null, data, true);
+    }
+
+    static void error(final Context context, @NonNull Type type, EntityFolder folder, String data) {
+        if (folder == null)
+            log(context, type, null, null, null, data, true);
+        else {
+            if (data == null || !data.contains(folder.name))
+                log(context, type, folder.account, folder.id, null, folder.name + " " + data, true);
+            else
+                log(context, type, folder.account, folder.id, null, data, true);
+        }
+    }
+
+    private static void log(final Context context, @NonNull Type type, Long account, Long folder, Long message, String data, boolean error) {
         Log.i(data);
 
         if (context == null)
@@ -128,52 +157,119 @@ public class EntityLog {
         entry.message = message;
         entry.data = data;
 
-        final DB db = DB.getInstance(context);
+        final boolean delay;
+        synchronized (pending) {
+            pending.add(entry);
+            if (error) {
+                delay = false;
+                requested = true;
+            } else if (pending.size() < LOG_FLUSH_SIZE) {
+                if (scheduled)
+                    return;
+                scheduled = true;
+                delay = true;
+            } else {
+                if (requested)
+                    return;
+                requested = true;
+                delay = false;
+            }
+        }
 
-        executor.submit(new Runnable() {
+        final Context ctx = context.getApplicationContext();
+
+        final Runnable flush = new Runnable() {
             @Override
             public void run() {
-                // Check available storage space
-                if (!ok || (++count % LOG_DELETE_BATCH_SIZE) == 0) {
-                    long cake = Helper.getAvailableStorageSpace();
-                    boolean wasOk = ok;
-                    ok = (cake > Helper.MIN_REQUIRED_SPACE);
-                    if (!ok)
-                        if (wasOk) {
-                            entry.type = Type.General;
-                            entry.account = null;
-                            entry.folder = null;
-                            entry.message = null;
-                            entry.data = "Insufficient storage space=" +
-                                    Helper.humanReadableByteCount(cake) + "/" +
-                                    Helper.humanReadableByteCount(Helper.MIN_REQUIRED_SPACE);
-                        } else
-                            return;
-                }
-
-                try {
-                    db.beginTransaction();
-                    db.log().insertLog(entry);
-                    db.setTransactionSuccessful();
-                } catch (Throwable ex) {
-                    Log.e(ex);
-                } finally {
-                    db.endTransaction();
-                }
-
-                long now = new Date().getTime();
-                if (last_cleanup == null || last_cleanup + LOG_CLEANUP_INTERVAL < now) {
-                    last_cleanup = now;
-                    cleanup(context, now - LOG_KEEP_DURATION);
-                }
+                flush(ctx, delay);
             }
-        });
+        };
+
+        if (delay)
+            executor.schedule(flush, LOG_FLUSH_DELAY, TimeUnit.MILLISECONDS);
+        else {
+            Future<?> future = executor.submit(flush);
+            // Errors matter most if the app is about to crash, so don't keep them buffered
+            if (error && Looper.myLooper() != Looper.getMainLooper())
+                await(future);
+        }
+    }
+
+    static void flush(Context context) {
+        // Persist buffered entries before the process ends
+        final Context ctx = context.getApplicationContext();
+        await(executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                flush(ctx, false);
+            }
+        }));
+    }
+
+    private static void await(Future<?> future) {
+        try {
+            future.get(LOG_FLUSH_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Log.w(ex);
+            Thread.currentThread().interrupt();
+        } catch (Throwable ex) {
+            Log.w(ex);
+        }
+    }
+
+    private static void flush(Context context, boolean reschedule) {
+        List<EntityLog> entries;
+        synchronized (pending) {
+            if (reschedule)
+                scheduled = false;
+            else
+                requested = false;
+            if (pending.size() == 0)
+                return;
+            entries = new ArrayList<>(pending);
+            pending.clear();
+        }
+
+        // Check available storage space
+        long cake = Helper.getAvailableStorageSpace();
+        boolean wasOk = ok;
+        ok = (cake > Helper.MIN_REQUIRED_SPACE);
+        if (!ok)
+            if (wasOk) {
+                EntityLog entry = new EntityLog();
+                entry.time = new Date().getTime();
+                entry.type = Type.General;
+                entry.data = "Insufficient storage space=" +
+                        Helper.humanReadableByteCount(cake) + "/" +
+                        Helper.humanReadableByteCount(Helper.MIN_REQUIRED_SPACE);
+                entries.clear();
+                entries.add(entry);
+            } else
+                return;
+
+        DB db = DB.getInstance(context);
+        try {
+            db.beginTransaction();
+            db.log().insertLogs(entries);
+            db.setTransactionSuccessful();
+        } catch (Throwable ex) {
+            Log.e(ex);
+        } finally {
+            db.endTransaction();
+        }
+
+        long now = new Date().getTime();
+        if (last_cleanup == null || last_cleanup + LOG_CLEANUP_INTERVAL < now) {
+            last_cleanup = now;
+            cleanup(context, now - LOG_KEEP_DURATION);
+        }
     }
 
     static void clear(final Context context) {
         executor.submit(new Runnable() {
             @Override
             public void run() {
+                flush(context, false);
                 cleanup(context, new Date().getTime());
             }
         });
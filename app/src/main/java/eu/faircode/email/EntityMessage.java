@@ -533,6 +533,17 @@ public class EntityMessage implements Serializable {
         return new File(dir, id + "." + revision);
     }
 
+    File getTextFile(Context context) {
+        return getTextFile(context, id);
+    }
+
+    static File getTextFile(Context context, Long id) {
+        File dir = new File(context.getFilesDir(), "text");
+        if (!dir.exists())
+            dir.mkdir();
+        return new File(dir, id.toString());
+    }
+
     File getRefFile(Context context) {
         File dir = new File(context.getFilesDir(), "references");
         if (!dir.exists())
@@ -0,0 +1,86 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FairEmail is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018-2022 by Marcel Bokhorst (M66B)
+*/
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+
+@Entity(
+        tableName = EntityThreadSummary.TABLE_NAME,
+        primaryKeys = {"account", "thread"}
+)
+public class EntityThreadSummary {
+    static final String TABLE_NAME = "thread_summary";
+    static final String DIRTY_TABLE_NAME = "thread_summary_dirty";
+
+    // Maintained by triggers and after changes, see DB.createTriggers and DB.refreshThreadSummaries
+    // No foreign key, because the triggers run while messages are being deleted by cascade
+
+    public long account;
+    @NonNull
+    public String thread;
+    public int messages;
+    public int unseen;
+    public int unflagged;
+    public int drafts;
+    public int visible;
+    public int visible_unseen;
+    public int unknown;
+    public int snoozed;
+    public int attachments;
+    public Long total;
+    public String senders;
+    public String recipients;
+
+    static final String COLUMNS = "account, thread" +
+            ", messages, unseen, unflagged, drafts, visible, visible_unseen, unknown, snoozed" +
+            ", attachments, total, senders, recipients";
+
+    static String getSelect(String where) {
+        // Should match the aggregates of DaoMessage.pagedUnified
+        return "SELECT m.account, m.thread" +
+                ", COUNT(m.id)" +
+                ", SUM(1 - m.ui_seen)" +
+                ", SUM(1 - m.ui_flagged)" +
+                ", SUM(f.type = '" + EntityFolder.DRAFTS + "')" +
+                ", COUNT(DISTINCT" +
+                "   CASE WHEN NOT m.hash IS NULL THEN m.hash" +
+                "   WHEN NOT m.msgid IS NULL THEN m.msgid" +
+                "   ELSE m.id END)" +
+                ", COUNT(DISTINCT" +
+                "   CASE WHEN m.ui_seen THEN NULL" +
+                "   WHEN NOT m.hash IS NULL THEN m.hash" +
+                "   WHEN NOT m.msgid IS NULL THEN m.msgid" +
+                "   ELSE m.id END)" +
+                ", IFNULL(SUM(m.avatar IS NOT NULL AND m.sender <> i.email), 0)" +
+                ", SUM(CASE WHEN m.ui_snoozed IS NULL THEN 0 ELSE 1 END)" +
+                ", SUM(m.attachments)" +
+                ", SUM(m.total)" +
+                ", group_concat(m.`from`, ',')" +
+                ", group_concat(m.`to`, ',')" +
+                " FROM (SELECT * FROM message" +
+                "  WHERE NOT ui_hide AND NOT thread IS NULL" +
+                (where == null ? "" : " AND " + where) +
+                "  ORDER BY received DESC) AS m" + // group_concat
+                " JOIN folder AS f ON f.id = m.folder" +
+                " LEFT JOIN identity AS i ON i.id = m.identity" +
+                " GROUP BY m.account, m.thread";
+    }
+}
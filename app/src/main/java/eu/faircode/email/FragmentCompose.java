@@ -169,7 +169,6 @@ import org.jsoup.select.Elements;
 import org.jsoup.select.NodeFilter;
 import org.openintents.openpgp.OpenPgpError;
 import org.openintents.openpgp.util.OpenPgpApi;
-import org.w3c.dom.css.CSSStyleSheet;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
@@ -5118,7 +5117,7 @@ public class FragmentCompose extends FragmentBase {
                             Element e = d.body();
 
                             // Apply styles
-                            List<CSSStyleSheet> sheets = HtmlHelper.parseStyles(d.head().select("style"));
+                            HtmlHelper.StyleIndex sheets = HtmlHelper.indexStyles(context, d.head().select("style"));
                             for (Element element : e.select("*")) {
                                 String tag = element.tagName();
                                 String clazz = element.attr("class");
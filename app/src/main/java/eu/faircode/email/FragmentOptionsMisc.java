@@ -470,8 +470,23 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
                     count++;
                     if (count >= 3) {
                         count = 0;
-                        MessageClassifier.clear(buttonView.getContext());
-                        ToastEx.makeText(buttonView.getContext(), R.string.title_reset, Toast.LENGTH_LONG).show();
+                        new SimpleTask<Void>() {
+                            @Override
+                            protected Void onExecute(Context context, Bundle args) {
+                                MessageClassifier.clear(context);
+                                return null;
+                            }
+
+                            @Override
+                            protected void onExecuted(Bundle args, Void data) {
+                                ToastEx.makeText(getContext(), R.string.title_reset, Toast.LENGTH_LONG).show();
+                            }
+
+                            @Override
+                            protected void onException(Bundle args, Throwable ex) {
+                                Log.unexpectedError(getParentFragmentManager(), ex);
+                            }
+                        }.execute(FragmentOptionsMisc.this, new Bundle(), "classification:reset");
                     }
                 }
             }
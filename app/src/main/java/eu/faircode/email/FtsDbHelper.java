@@ -33,6 +33,7 @@ import javax.mail.Address;
 
 import io.requery.android.database.sqlite.SQLiteDatabase;
 import io.requery.android.database.sqlite.SQLiteOpenHelper;
+import io.requery.android.database.sqlite.SQLiteStatement;
 
 // https://www.sqlite.org/fts5.html
 public class FtsDbHelper extends SQLiteOpenHelper {
@@ -90,15 +91,6 @@ public class FtsDbHelper extends SQLiteOpenHelper {
 
     static void insert(SQLiteDatabase db, EntityMessage message, String text) {
         Log.i("FTS insert id=" + message.id);
-        List<Address> address = new ArrayList<>();
-        if (message.from != null)
-            address.addAll(Arrays.asList(message.from));
-        if (message.to != null)
-            address.addAll(Arrays.asList(message.to));
-        if (message.cc != null)
-            address.addAll(Arrays.asList(message.cc));
-        if (message.bcc != null)
-            address.addAll(Arrays.asList(message.bcc));
 
         delete(db, message.id);
 
@@ -107,7 +99,7 @@ public class FtsDbHelper extends SQLiteOpenHelper {
         cv.put("account", message.account);
         cv.put("folder", message.folder);
         cv.put("time", message.received);
-        cv.put("address", MessageHelper.formatAddresses(address.toArray(new Address[0]), true, false));
+        cv.put("address", getAddresses(message));
         cv.put("subject", message.subject == null ? "" : message.subject);
         cv.put("keyword", TextUtils.join(", ", message.keywords));
         cv.put("text", text);
@@ -115,6 +107,55 @@ public class FtsDbHelper extends SQLiteOpenHelper {
         db.insert("message", SQLiteDatabase.CONFLICT_FAIL, cv);
     }
 
+    static void insert(SQLiteDatabase db, List<EntityMessage> messages, List<String> texts) {
+        Log.i("FTS insert count=" + messages.size());
+
+        try (SQLiteStatement delete = db.compileStatement(
+                "DELETE FROM message WHERE rowid = ?");
+             SQLiteStatement insert = db.compileStatement(
+                     "INSERT INTO message" +
+                             " (rowid, account, folder, time, address, subject, keyword, text, notes)" +
+                             " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+            for (int i = 0; i < messages.size(); i++) {
+                EntityMessage message = messages.get(i);
+                String text = texts.get(i);
+                if (text == null)
+                    continue;
+
+                delete.bindLong(1, message.id);
+                delete.executeUpdateDelete();
+
+                insert.bindLong(1, message.id);
+                insert.bindLong(2, message.account);
+                insert.bindLong(3, message.folder);
+                insert.bindLong(4, message.received);
+                insert.bindString(5, getAddresses(message));
+                insert.bindString(6, message.subject == null ? "" : message.subject);
+                insert.bindString(7, TextUtils.join(", ", message.keywords));
+                insert.bindString(8, text);
+                if (message.notes == null)
+                    insert.bindNull(9);
+                else
+                    insert.bindString(9, message.notes);
+                insert.executeInsert();
+                insert.clearBindings();
+            }
+        }
+    }
+
+    private static String getAddresses(EntityMessage message) {
+        List<Address> address = new ArrayList<>();
+        if (message.from != null)
+            address.addAll(Arrays.asList(message.from));
+        if (message.to != null)
+            address.addAll(Arrays.asList(message.to));
+        if (message.cc != null)
+            address.addAll(Arrays.asList(message.cc));
+        if (message.bcc != null)
+            address.addAll(Arrays.asList(message.bcc));
+        return MessageHelper.formatAddresses(address.toArray(new Address[0]), true, false);
+    }
+
     static void delete(SQLiteDatabase db) {
         db.delete("message", null, null);
     }
@@ -126,7 +126,9 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
 import java.net.HttpURLConnection;
@@ -146,6 +148,7 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
@@ -153,6 +156,8 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -213,17 +218,7 @@ public class Helper {
     private static final ExecutorService executor = getBackgroundExecutor(1, "helper");
 
     static ExecutorService getBackgroundExecutor(int threads, final String name) {
-        ThreadFactory factory = new ThreadFactory() {
-            private final AtomicInteger threadId = new AtomicInteger();
-
-            @Override
-            public Thread newThread(@NonNull Runnable runnable) {
-                Thread thread = new Thread(runnable);
-                thread.setName("FairEmail_bg_" + name + "_" + threadId.getAndIncrement());
-                thread.setPriority(THREAD_PRIORITY_BACKGROUND);
-                return thread;
-            }
-        };
+        ThreadFactory factory = getBackgroundThreadFactory(name);
 
         if (threads == 0)
             return new ThreadPoolExecutorEx(
@@ -261,6 +256,24 @@ public class Helper {
                     factory);
     }
 
+    static ScheduledExecutorService getBackgroundScheduledExecutor(final String name) {
+        return new ScheduledThreadPoolExecutor(1, getBackgroundThreadFactory(name));
+    }
+
+    private static ThreadFactory getBackgroundThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger threadId = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable);
+                thread.setName("FairEmail_bg_" + name + "_" + threadId.getAndIncrement());
+                thread.setPriority(THREAD_PRIORITY_BACKGROUND);
+                return thread;
+            }
+        };
+    }
+
     private static class ThreadPoolExecutorEx extends ThreadPoolExecutor {
         private String name;
 
@@ -1972,6 +1985,50 @@ public class Helper {
         }
     }
 
+    static boolean containsIgnoreCase(File file, String query) throws IOException {
+        // Boyer-Moore-Horspool over lower cased chunks of the file
+        int m = query.length();
+        if (m == 0)
+            return true;
+
+        char[] pattern = new char[m];
+        for (int i = 0; i < m; i++)
+            pattern[i] = Character.toLowerCase(query.charAt(i));
+
+        int[] shift = new int[256];
+        Arrays.fill(shift, m);
+        for (int i = 0; i < m - 1; i++)
+            shift[pattern[i] & 0xff] = m - 1 - i;
+
+        char[] buffer = new char[Math.max(BUFFER_SIZE, 2 * m)];
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            int len = 0;
+            while (true) {
+                int read = reader.read(buffer, len, buffer.length - len);
+                if (read < 0)
+                    return false;
+                for (int i = len; i < len + read; i++)
+                    buffer[i] = Character.toLowerCase(buffer[i]);
+                len += read;
+
+                int i = 0;
+                while (i <= len - m) {
+                    int j = m - 1;
+                    while (j >= 0 && buffer[i + j] == pattern[j])
+                        j--;
+                    if (j < 0)
+                        return true;
+                    i += shift[buffer[i + m - 1] & 0xff];
+                }
+
+                // Keep a partial match at the end
+                int keep = Math.min(len, m - 1);
+                System.arraycopy(buffer, len - keep, buffer, 0, keep);
+                len = keep;
+            }
+        }
+    }
+
     public static void readBuffer(InputStream is, byte[] buffer) throws IOException {
         int left = buffer.length;
         while (left > 0) {
@@ -2065,6 +2122,10 @@ public class Helper {
     }
 
     static HttpURLConnection openUrlRedirect(Context context, String source, int timeout) throws IOException {
+        return openUrlRedirect(context, source, timeout, null);
+    }
+
+    static HttpURLConnection openUrlRedirect(Context context, String source, int timeout, Map<String, String> headers) throws IOException {
         int redirects = 0;
         URL url = new URL(source);
         while (true) {
@@ -2075,6 +2136,9 @@ public class Helper {
             urlConnection.setConnectTimeout(timeout);
             urlConnection.setInstanceFollowRedirects(true);
             urlConnection.setRequestProperty("User-Agent", WebViewEx.getUserAgent(context));
+            if (headers != null)
+                for (String name : headers.keySet())
+                    urlConnection.setRequestProperty(name, headers.get(name));
             urlConnection.connect();
 
             try {
@@ -2100,6 +2164,9 @@ public class Helper {
                     continue;
                 }
 
+                if (status == HttpURLConnection.HTTP_NOT_MODIFIED && headers != null)
+                    return urlConnection;
+
                 if (status != HttpURLConnection.HTTP_OK)
                     throw new IOException("Error " + status + ": " + urlConnection.getResponseMessage());
 
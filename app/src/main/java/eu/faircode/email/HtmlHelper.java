@@ -58,6 +58,7 @@ import android.text.style.SuperscriptSpan;
 import android.text.style.URLSpan;
 import android.text.style.UnderlineSpan;
 import android.util.Base64;
+import android.util.LruCache;
 import android.util.Patterns;
 import android.view.View;
 
@@ -115,10 +116,13 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -146,6 +150,9 @@ public class HtmlHelper {
     private static final int MAX_ALT = 250;
     private static final int MAX_AUTO_LINK = 250;
     private static final int MAX_FORMAT_TEXT_SIZE = 200 * 1024; // characters
+    private static final int STYLE_CACHE_FRACTION = 64; // of memory class
+    private static final int OBJECT_SIZE = 48; // bytes, estimated heap use of a map entry or list
+    private static final int REFERENCE_SIZE = 8; // bytes
     private static final int SMALL_IMAGE_SIZE = 5; // pixels
     private static final int TRACKING_PIXEL_SURFACE = 25; // pixels
     private static final float[] HEADING_SIZES = {1.5f, 1.4f, 1.3f, 1.2f, 1.1f, 1f};
@@ -154,6 +161,10 @@ public class HtmlHelper {
 
     private static final HashMap<String, Integer> x11ColorMap = new HashMap<>();
 
+    private static int styleCacheHits = 0;
+    private static int styleCacheMisses = 0;
+    private static LruCache<String, CachedStyle> styleCache = null;
+
     // https://www.w3.org/TR/CSS21/propidx.html
     private static final List<String> STYLE_NO_INHERIT = Collections.unmodifiableList(Arrays.asList(
             "background-attachment", "background-color", "background-image", "background-position", "background-repeat", "background",
@@ -492,9 +503,9 @@ public class HtmlHelper {
         }
 
         // https://developer.mozilla.org/en-US/docs/Web/HTML/Element/style
-        List<CSSStyleSheet> sheets = new ArrayList<>();
+        StyleIndex sheets = null;
         if (parse_classes)
-            sheets = parseStyles(parsed.head().select("style"));
+            sheets = indexStyles(context, parsed.head().select("style"));
 
         Safelist safelist = Safelist.relaxed()
                 .addTags("hr", "abbr", "big", "font", "dfn", "del", "s", "tt", "mark")
@@ -1614,94 +1625,211 @@ public class HtmlHelper {
         }
     }
 
-    static List<CSSStyleSheet> parseStyles(Elements styles) {
-        List<CSSStyleSheet> sheets = new ArrayList<>();
+    static StyleIndex indexStyles(Context context, Elements styles) {
+        StyleIndex index = new StyleIndex();
+        LruCache<String, CachedStyle> cache = getStyleCache(context);
         for (Element style : styles) {
             if (BuildConfig.DEBUG)
                 Log.i("Style=" + style.data());
             try {
-                InputSource source = new InputSource(new StringReader(style.data()));
+                String data = style.data();
                 String media = style.attr("media");
-                if (!TextUtils.isEmpty(media))
-                    source.setMedia(media);
 
-                CSSOMParser parser = new CSSOMParser(new SACParserCSS3());
-                parser.setErrorHandler(new ErrorHandler() {
-                    @Override
-                    public void warning(CSSParseException ex) throws CSSException {
-                        Log.i("CSS warning=" + ex.getMessage());
-                    }
+                // Bulk senders use the same style sheet in every message
+                String key = Helper.sha256(media + "\n" + data);
+                CachedStyle cached = cache.get(key);
+                synchronized (cache) {
+                    if (cached == null)
+                        styleCacheMisses++;
+                    else
+                        styleCacheHits++;
+                }
 
-                    @Override
-                    public void error(CSSParseException ex) throws CSSException {
-                        Log.i("CSS error=" + ex.getMessage());
+                if (cached == null) {
+                    SheetIndex sindex = null;
+                    CSSStyleSheet sheet = parseStyleSheet(data, media);
+                    if (sheet != null && isScreenMedia(sheet.getMedia())) {
+                        sindex = new SheetIndex();
+                        indexStyles(sheet.getCssRules(), sindex);
                     }
 
-                    @Override
-                    public void fatalError(CSSParseException ex) throws CSSException {
-                        Log.w(ex);
-                    }
-                });
+                    // Only the index is kept, the parsed style sheet is many times larger
+                    cached = new CachedStyle(sindex, key.length() * 2 + OBJECT_SIZE +
+                            (sindex == null ? 0 : sindex.getSize()));
+                    cache.put(key, cached);
+                }
 
-                long start = new Date().getTime();
-                sheets.add(parser.parseStyleSheet(source, null, null));
-                long elapsed = new Date().getTime() - start;
-                Log.i("Style parse=" + elapsed + " ms");
+                if (cached.index != null)
+                    index.sheets.add(cached.index);
             } catch (Throwable ex) {
                 Log.w(ex);
             }
         }
-        return sheets;
+        return index;
     }
 
-    static String processStyles(String tag, String clazz, String style, List<CSSStyleSheet> sheets) {
-        for (CSSStyleSheet sheet : sheets)
-            if (isScreenMedia(sheet.getMedia())) {
-                style = processStyles(null, clazz, style, sheet.getCssRules(), Selector.SAC_ELEMENT_NODE_SELECTOR);
-                style = processStyles(tag, clazz, style, sheet.getCssRules(), Selector.SAC_ELEMENT_NODE_SELECTOR);
-                style = processStyles(tag, clazz, style, sheet.getCssRules(), Selector.SAC_CONDITIONAL_SELECTOR);
+    private static CSSStyleSheet parseStyleSheet(String data, String media) throws IOException {
+        InputSource source = new InputSource(new StringReader(data));
+        if (!TextUtils.isEmpty(media))
+            source.setMedia(media);
+
+        CSSOMParser parser = new CSSOMParser(new SACParserCSS3());
+        parser.setErrorHandler(new ErrorHandler() {
+            @Override
+            public void warning(CSSParseException ex) throws CSSException {
+                Log.i("CSS warning=" + ex.getMessage());
+            }
+
+            @Override
+            public void error(CSSParseException ex) throws CSSException {
+                Log.i("CSS error=" + ex.getMessage());
+            }
+
+            @Override
+            public void fatalError(CSSParseException ex) throws CSSException {
+                Log.w(ex);
             }
-        return style;
+        });
+
+        long start = new Date().getTime();
+        CSSStyleSheet sheet = parser.parseStyleSheet(source, null, null);
+        long elapsed = new Date().getTime() - start;
+        Log.i("Style parse=" + elapsed + " ms");
+
+        return sheet;
     }
 
-    private static String processStyles(String tag, String clazz, String style, CSSRuleList rules, int stype) {
+    private static LruCache<String, CachedStyle> getStyleCache(Context context) {
+        synchronized (HtmlHelper.class) {
+            if (styleCache == null) {
+                ActivityManager am = Helper.getSystemService(context, ActivityManager.class);
+                int size = am.getMemoryClass() * 1024 * 1024 / STYLE_CACHE_FRACTION;
+                Log.i("Style cache size=" + Helper.humanReadableByteCount(size));
+                styleCache = new LruCache<String, CachedStyle>(size) {
+                    @Override
+                    protected int sizeOf(String key, CachedStyle value) {
+                        return value.size;
+                    }
+                };
+            }
+            return styleCache;
+        }
+    }
+
+    static void clearStyleCache() {
+        synchronized (HtmlHelper.class) {
+            if (styleCache != null)
+                styleCache.evictAll();
+        }
+    }
+
+    static int[] getStyleCacheStats() {
+        synchronized (HtmlHelper.class) {
+            return new int[]{styleCacheHits, styleCacheMisses, styleCache == null ? 0 : styleCache.size()};
+        }
+    }
+
+    private static void indexStyles(CSSRuleList rules, SheetIndex index) {
         for (int i = 0; rules != null && i < rules.getLength(); i++) {
             CSSRule rule = rules.item(i);
             switch (rule.getType()) {
                 case CSSRule.STYLE_RULE:
                     CSSStyleRuleImpl srule = (CSSStyleRuleImpl) rule;
+                    Map<String, String> declarations = null;
                     for (int j = 0; j < srule.getSelectors().getLength(); j++) {
                         Selector selector = srule.getSelectors().item(j);
-                        if (selector.getSelectorType() != stype)
-                            continue;
+                        List<Map<String, String>> bucket = null;
                         switch (selector.getSelectorType()) {
                             case Selector.SAC_ELEMENT_NODE_SELECTOR:
                                 ElementSelectorImpl eselector = (ElementSelectorImpl) selector;
-                                if (tag == null
-                                        ? eselector.getLocalName() == null
-                                        : tag.equals(eselector.getLocalName()))
-                                    style = mergeStyles(style, srule.getStyle().getCssText());
+                                String name = eselector.getLocalName();
+                                if (name == null)
+                                    bucket = index.universal;
+                                else
+                                    bucket = getBucket(index.tags, name);
                                 break;
                             case Selector.SAC_CONDITIONAL_SELECTOR:
                                 ConditionalSelectorImpl cselector = (ConditionalSelectorImpl) selector;
                                 if (cselector.getCondition().getConditionType() == SAC_CLASS_CONDITION) {
                                     ClassConditionImpl ccondition = (ClassConditionImpl) cselector.getCondition();
-                                    if (clazz.equals(ccondition.getValue()))
-                                        style = mergeStyles(style, srule.getStyle().getCssText());
+                                    bucket = getBucket(index.classes, ccondition.getValue());
                                 }
                                 break;
                         }
+                        if (bucket != null) {
+                            if (declarations == null)
+                                declarations = parseStyle(srule.getStyle().getCssText());
+                            bucket.add(declarations);
+                        }
                     }
                     break;
 
                 case CSSRule.MEDIA_RULE:
                     CSSMediaRuleImpl mrule = (CSSMediaRuleImpl) rule;
                     if (isScreenMedia(mrule.getMedia()))
-                        style = processStyles(tag, clazz, style, mrule.getCssRules(), stype);
+                        indexStyles(mrule.getCssRules(), index);
                     break;
             }
         }
-        return style;
+    }
+
+    private static List<Map<String, String>> getBucket(Map<String, List<Map<String, String>>> buckets, String key) {
+        List<Map<String, String>> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<>();
+            buckets.put(key, bucket);
+        }
+        return bucket;
+    }
+
+    static String processStyles(String tag, String clazz, String style, StyleIndex index) {
+        if (index == null)
+            return style;
+
+        Map<String, String> result = null;
+        for (SheetIndex sheet : index.sheets) {
+            result = mergeStyles(result, style, sheet.universal);
+            result = mergeStyles(result, style, sheet.tags.get(tag));
+            result = mergeStyles(result, style, sheet.classes.get(clazz));
+        }
+
+        return (result == null ? style : TextUtils.join(";", result.values()));
+    }
+
+    private static Map<String, String> mergeStyles(Map<String, String> result, String base, List<Map<String, String>> rules) {
+        if (rules == null || rules.size() == 0)
+            return result;
+
+        if (result == null)
+            result = parseStyle(base);
+
+        for (Map<String, String> declarations : rules) {
+            Iterator<String> keys = result.keySet().iterator();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (!declarations.containsKey(key) && STYLE_NO_INHERIT.contains(key))
+                    keys.remove();
+            }
+            result.putAll(declarations);
+        }
+
+        return result;
+    }
+
+    private static Map<String, String> parseStyle(String style) {
+        Map<String, String> result = new HashMap<>();
+        if (!TextUtils.isEmpty(style))
+            for (String param : style.split(";")) {
+                int colon = param.indexOf(':');
+                if (colon < 0) {
+                    Log.w("CSS invalid=" + param);
+                    continue;
+                }
+
+                String key = param.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                result.put(key, param);
+            }
+        return result;
     }
 
     private static boolean isScreenMedia(MediaList media) {
@@ -2406,6 +2534,58 @@ public class HtmlHelper {
         }
     }
 
+    static String getFullText(Context context, long id) throws IOException {
+        File file = EntityMessage.getFile(context, id);
+        File cache = EntityMessage.getTextFile(context, id);
+
+        // The text is valid as long as the message file is unchanged
+        // Get the tag before reading, so that a rewritten file doesn't get the old text
+        String tag = getTextTag(file);
+        if (cache.exists())
+            try {
+                String cached = Helper.readText(cache);
+                int nl = cached.indexOf('\n');
+                if (nl > 0 && cached.substring(0, nl).equals(tag))
+                    return cached.substring(nl + 1);
+            } catch (IOException ex) {
+                Log.w(ex);
+            }
+
+        String text = getFullText(file);
+        writeFullText(context, id, tag, text);
+        return text;
+    }
+
+    static void writeFullText(Context context, long id, String text) {
+        File file = EntityMessage.getFile(context, id);
+        writeFullText(context, id, getTextTag(file), text);
+    }
+
+    private static void writeFullText(Context context, long id, String tag, String text) {
+        File file = EntityMessage.getFile(context, id);
+        File cache = EntityMessage.getTextFile(context, id);
+        if (text == null || !file.exists()) {
+            cache.delete();
+            return;
+        }
+
+        // Replace the file at once, because it is read concurrently
+        File tmp = new File(cache.getParentFile(), cache.getName() + ".tmp." + Thread.currentThread().getId());
+        try {
+            Helper.writeText(tmp, tag + "\n" + text);
+            if (!tmp.renameTo(cache))
+                throw new IOException("Error renaming " + tmp);
+        } catch (IOException ex) {
+            Log.w(ex);
+            tmp.delete();
+            cache.delete();
+        }
+    }
+
+    private static String getTextTag(File file) {
+        return file.length() + ":" + file.lastModified();
+    }
+
     private static String _getText(Document d) {
         truncate(d, MAX_FULL_TEXT_SIZE);
 
@@ -3718,4 +3898,46 @@ public class HtmlHelper {
     interface ImageGetterEx {
         Drawable getDrawable(Element element);
     }
+
+    private static class CachedStyle {
+        private final SheetIndex index;
+        private final int size;
+
+        CachedStyle(SheetIndex index, int size) {
+            this.index = index;
+            this.size = size;
+        }
+    }
+
+    static class StyleIndex {
+        private final List<SheetIndex> sheets = new ArrayList<>();
+    }
+
+    private static class SheetIndex {
+        // Declarations in document order, by selector
+        // Read only once indexed, so that it can be shared between messages
+        private final List<Map<String, String>> universal = new ArrayList<>();
+        private final Map<String, List<Map<String, String>>> tags = new HashMap<>();
+        private final Map<String, List<Map<String, String>>> classes = new HashMap<>();
+
+        int getSize() {
+            // Declarations can be in multiple buckets, but are counted once
+            Set<Map<String, String>> declarations = Collections.newSetFromMap(new IdentityHashMap<>());
+            int size = getSize(universal, declarations);
+            for (Map.Entry<String, List<Map<String, String>>> kv : tags.entrySet())
+                size += kv.getKey().length() * 2 + getSize(kv.getValue(), declarations);
+            for (Map.Entry<String, List<Map<String, String>>> kv : classes.entrySet())
+                size += kv.getKey().length() * 2 + getSize(kv.getValue(), declarations);
+            return size;
+        }
+
+        private static int getSize(List<Map<String, String>> bucket, Set<Map<String, String>> seen) {
+            int size = OBJECT_SIZE + bucket.size() * REFERENCE_SIZE;
+            for (Map<String, String> declarations : bucket)
+                if (seen.add(declarations))
+                    for (Map.Entry<String, String> kv : declarations.entrySet())
+                        size += OBJECT_SIZE + (kv.getKey().length() + kv.getValue().length()) * 2;
+            return size;
+        }
+    }
 }
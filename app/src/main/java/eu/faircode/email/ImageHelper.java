@@ -19,6 +19,7 @@ package eu.faircode.email;
     Copyright 2018-2022 by Marcel Bokhorst (M66B)
 */
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
@@ -46,6 +47,7 @@ import android.os.Build;
 import android.text.TextUtils;
 import android.util.Base64;
 import android.util.DisplayMetrics;
+import android.util.LruCache;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.ViewParent;
@@ -59,6 +61,8 @@ import androidx.preference.PreferenceManager;
 
 import com.caverock.androidsvg.SVG;
 
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.jsoup.nodes.Element;
 
 import java.io.BufferedInputStream;
@@ -76,9 +80,13 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.ExecutorService;
 
@@ -92,6 +100,14 @@ class ImageHelper {
     private static final int MAX_PROBE = 128 * 1024; // bytes
     private static final int SLOW_CONNECTION = 2 * 1024; // Kbps
     private static final int MAX_BITMAP_SIZE = 100 * 1024 * 1024; // RecordingCanvas.MAX_BITMAP_SIZE
+    private static final long MAX_IMAGE_CACHE_SIZE = 50 * 1024 * 1024L; // bytes
+    private static final int TRIM_CACHE_WRITES = 10;
+    private static final long IMAGE_REVALIDATE_AFTER = 24 * 3600 * 1000L; // milliseconds
+    private static final long CACHE_IMAGE_DURATION = 14 * 24 * 3600 * 1000L; // milliseconds
+
+    private static int cacheWrites = 0;
+    private static LruCache<String, CachedBitmap> bitmapCache = null;
+    private static final Set<String> revalidating = new HashSet<>();
 
     // https://developer.android.com/guide/topics/media/media-formats#image-formats
     static final List<String> IMAGE_TYPES = Collections.unmodifiableList(Arrays.asList(
@@ -648,31 +664,50 @@ class ImageHelper {
         if (id < 0)
             return null;
 
-        File file = getCacheFile(context, id, source,
-                Build.VERSION.SDK_INT < Build.VERSION_CODES.P ? ".png" : ".blob");
-        if (file.exists()) {
-            Log.i("Using cached " + file);
-            file.setLastModified(new Date().getTime());
+        Resources res = context.getResources();
+        DisplayMetrics dm = res.getDisplayMetrics();
+        long now = new Date().getTime();
+
+        LruCache<String, CachedBitmap> cache = getBitmapCache(context);
+        CachedBitmap cached = cache.get(source);
+        if (cached != null && cached.scale == dm.widthPixels) {
+            if (cached.checked + IMAGE_REVALIDATE_AFTER < now) {
+                // Revalidated images are removed from the memory cache when modified
+                cached.checked = now;
+                revalidate(context, source);
+            }
 
-            DisplayMetrics dm = context.getResources().getDisplayMetrics();
+            Drawable d = new BitmapDrawable(res, cached.bitmap);
+            d.setBounds(0, 0, cached.width, cached.height);
+            return d;
+        }
 
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P)
-                try {
-                    return getScaledDrawable(context, file, null, dm.widthPixels);
-                } catch (IOException ex) {
-                    Log.i(ex);
-                    return null;
-                }
+        File file = getCacheFile(context, source);
+        if (!file.exists())
+            return null;
 
-            Bitmap bm = BitmapFactory.decodeFile(file.getAbsolutePath());
-            if (bm != null) {
-                Drawable d = new BitmapDrawable(context.getResources(), bm);
-                d.setBounds(0, 0, Math.round(bm.getWidth() * dm.density), Math.round(bm.getHeight() * dm.density));
-                return d;
+        Log.i("Using cached " + file);
+        file.setLastModified(now);
+        revalidate(context, source);
+
+        Drawable d;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P)
+            try {
+                d = getScaledDrawable(context, file, null, dm.widthPixels);
+            } catch (IOException ex) {
+                Log.i(ex);
+                return null;
             }
+        else {
+            Bitmap bm = BitmapFactory.decodeFile(file.getAbsolutePath());
+            if (bm == null)
+                return null;
+            d = new BitmapDrawable(res, bm);
+            d.setBounds(0, 0, Math.round(bm.getWidth() * dm.density), Math.round(bm.getHeight() * dm.density));
         }
 
-        return null;
+        putBitmap(context, source, d);
+        return d;
     }
 
     @NonNull
@@ -684,16 +719,23 @@ class ImageHelper {
         int timeout = prefs.getInt("timeout", ImageHelper.DOWNLOAD_TIMEOUT) * 1000;
 
         Bitmap bm;
+        JSONObject jmeta;
         HttpURLConnection urlConnection = null;
         try {
             urlConnection = Helper.openUrlRedirect(context, source, timeout);
+            jmeta = getMeta(urlConnection);
 
             if (id > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
-                File file = getCacheFile(context, id, source, ".blob");
-                try (FileOutputStream fos = new FileOutputStream(file)) {
+                File file = getCacheFile(context, source);
+                File tmp = new File(file.getAbsolutePath() + "." + Thread.currentThread().getId());
+                try (FileOutputStream fos = new FileOutputStream(tmp)) {
                     Helper.copy(urlConnection.getInputStream(), fos);
                 }
-                return getScaledDrawable(context, file, null, dm.widthPixels);
+                putCacheFile(context, tmp, file, jmeta);
+
+                Drawable d = getScaledDrawable(context, file, null, dm.widthPixels);
+                putBitmap(context, source, d);
+                return d;
             }
 
             bm = getScaledBitmap(
@@ -711,17 +753,234 @@ class ImageHelper {
         Log.i("Downloaded image source=" + source);
 
         if (id >= 0) {
-            File file = getCacheFile(context, id, source, ".png");
-            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file))) {
+            File file = getCacheFile(context, source);
+            File tmp = new File(file.getAbsolutePath() + "." + Thread.currentThread().getId());
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp))) {
                 bm.compress(Bitmap.CompressFormat.PNG, 90, os);
             }
+            putCacheFile(context, tmp, file, jmeta);
         }
 
         Drawable d = new BitmapDrawable(res, bm);
         d.setBounds(0, 0, Math.round(bm.getWidth() * dm.density), Math.round(bm.getHeight() * dm.density));
+        if (id >= 0)
+            putBitmap(context, source, d);
         return d;
     }
 
+    private static void revalidate(final Context context, final String source) {
+        synchronized (revalidating) {
+            if (revalidating.contains(source))
+                return;
+            revalidating.add(source);
+        }
+
+        executor_n.submit(new Runnable() {
+            @Override
+            public void run() {
+                HttpURLConnection urlConnection = null;
+                try {
+                    File file = getCacheFile(context, source);
+                    File meta = getMetaFile(file);
+                    if (!file.exists() || !meta.exists())
+                        return;
+
+                    JSONObject jmeta = new JSONObject(Helper.readText(meta));
+                    long checked = jmeta.optLong("checked");
+                    if (checked + IMAGE_REVALIDATE_AFTER > new Date().getTime())
+                        return;
+
+                    Map<String, String> headers = new HashMap<>();
+                    if (jmeta.has("etag"))
+                        headers.put("If-None-Match", jmeta.getString("etag"));
+                    if (jmeta.has("modified"))
+                        headers.put("If-Modified-Since", jmeta.getString("modified"));
+                    if (headers.size() == 0) {
+                        // No validators
+                        file.delete();
+                        meta.delete();
+                        return;
+                    }
+
+                    SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+                    int timeout = prefs.getInt("timeout", ImageHelper.DOWNLOAD_TIMEOUT) * 1000;
+
+                    urlConnection = Helper.openUrlRedirect(context, source, timeout, headers);
+                    if (urlConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                        Log.i("Image not modified source=" + source);
+                        jmeta.put("checked", new Date().getTime());
+                        Helper.writeText(meta, jmeta.toString());
+                        return;
+                    }
+
+                    Log.i("Image modified source=" + source);
+                    File tmp = new File(file.getAbsolutePath() + "." + Thread.currentThread().getId());
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P)
+                        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                            Helper.copy(urlConnection.getInputStream(), fos);
+                        }
+                    else {
+                        DisplayMetrics dm = context.getResources().getDisplayMetrics();
+                        Bitmap bm = getScaledBitmap(
+                                urlConnection.getInputStream(),
+                                source, null,
+                                Math.max(dm.widthPixels, dm.heightPixels));
+                        if (bm == null)
+                            throw new FileNotFoundException("Download image failed source=" + source);
+                        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp))) {
+                            bm.compress(Bitmap.CompressFormat.PNG, 90, os);
+                        }
+                    }
+                    putCacheFile(context, tmp, file, getMeta(urlConnection));
+
+                    getBitmapCache(context).remove(source);
+                } catch (Throwable ex) {
+                    Log.i(ex);
+                } finally {
+                    if (urlConnection != null)
+                        urlConnection.disconnect();
+                    synchronized (revalidating) {
+                        revalidating.remove(source);
+                    }
+                }
+            }
+        });
+    }
+
+    private static JSONObject getMeta(HttpURLConnection urlConnection) {
+        JSONObject jmeta = new JSONObject();
+        try {
+            String etag = urlConnection.getHeaderField("ETag");
+            String modified = urlConnection.getHeaderField("Last-Modified");
+            if (!TextUtils.isEmpty(etag))
+                jmeta.put("etag", etag);
+            if (!TextUtils.isEmpty(modified))
+                jmeta.put("modified", modified);
+            jmeta.put("checked", new Date().getTime());
+        } catch (JSONException ex) {
+            Log.w(ex);
+        }
+        return jmeta;
+    }
+
+    private static void putCacheFile(Context context, File tmp, File file, JSONObject jmeta) throws IOException {
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Error renaming " + tmp);
+        }
+        Helper.writeText(getMetaFile(file), jmeta.toString());
+
+        synchronized (ImageHelper.class) {
+            cacheWrites++;
+            if (cacheWrites % TRIM_CACHE_WRITES != 0)
+                return;
+        }
+
+        trimCache(context);
+    }
+
+    private static void putBitmap(Context context, String source, Drawable d) {
+        if (!(d instanceof BitmapDrawable))
+            return;
+
+        Bitmap bm = ((BitmapDrawable) d).getBitmap();
+        if (bm == null)
+            return;
+
+        Rect bounds = d.getBounds();
+        DisplayMetrics dm = context.getResources().getDisplayMetrics();
+        getBitmapCache(context).put(source,
+                new CachedBitmap(bm, dm.widthPixels, bounds.width(), bounds.height()));
+    }
+
+    private static LruCache<String, CachedBitmap> getBitmapCache(Context context) {
+        synchronized (ImageHelper.class) {
+            if (bitmapCache == null) {
+                ActivityManager am = Helper.getSystemService(context, ActivityManager.class);
+                int size = am.getMemoryClass() * 1024 * 1024 / 8;
+                Log.i("Bitmap cache size=" + Helper.humanReadableByteCount(size));
+                bitmapCache = new LruCache<String, CachedBitmap>(size) {
+                    @Override
+                    protected int sizeOf(String key, CachedBitmap value) {
+                        return value.bitmap.getByteCount();
+                    }
+                };
+            }
+            return bitmapCache;
+        }
+    }
+
+    private static void trimCache(Context context) {
+        File[] files = getCacheDir(context).listFiles();
+        if (files == null)
+            return;
+
+        long size = 0;
+        for (File file : files)
+            size += file.length();
+        if (size <= MAX_IMAGE_CACHE_SIZE)
+            return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+
+        Log.i("Trimming image cache size=" + Helper.humanReadableByteCount(size));
+        for (File file : files) {
+            if (size <= MAX_IMAGE_CACHE_SIZE * 3 / 4)
+                break;
+            // Skip meta files and temporary files still being written
+            String name = file.getName();
+            if (!name.endsWith(".blob") && !name.endsWith(".png"))
+                continue;
+            size -= file.length();
+            file.delete();
+            File meta = getMetaFile(file);
+            size -= meta.length();
+            meta.delete();
+        }
+    }
+
+    static void cleanup(Context context) {
+        long now = new Date().getTime();
+
+        Log.i("Cleanup image cache");
+        File[] files = getCacheDir(context).listFiles();
+        if (files != null)
+            for (File file : files)
+                if (file.lastModified() + CACHE_IMAGE_DURATION < now &&
+                        !file.getName().endsWith(".json")) {
+                    Log.i("Deleting " + file);
+                    if (!file.delete())
+                        Log.w("Error deleting " + file);
+                    getMetaFile(file).delete();
+                }
+
+        trimCache(context);
+    }
+
+    static void clearCache(Context context) {
+        clearCache(context, true);
+    }
+
+    static void clearCache(Context context, boolean files) {
+        synchronized (ImageHelper.class) {
+            if (bitmapCache != null)
+                bitmapCache.evictAll();
+        }
+
+        if (!files)
+            return;
+
+        File[] images = getCacheDir(context).listFiles();
+        if (images != null)
+            for (File image : images)
+                image.delete();
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.P)
     static Drawable getScaledDrawable(Context context, File file, String mimeType, int scaleToPixels) throws IOException {
         Drawable d;
@@ -796,6 +1055,31 @@ class ImageHelper {
             return BitmapFactory.decodeStream(bis);
     }
 
+    private static File getCacheDir(Context context) {
+        File dir = new File(context.getFilesDir(), "remote");
+        if (!dir.exists())
+            dir.mkdir();
+        return dir;
+    }
+
+    @NonNull
+    private static File getCacheFile(Context context, String source) {
+        String name;
+        try {
+            name = Helper.sha256(source);
+        } catch (NoSuchAlgorithmException ex) {
+            name = Integer.toHexString(source.hashCode());
+        }
+        return new File(getCacheDir(context),
+                name + (Build.VERSION.SDK_INT < Build.VERSION_CODES.P ? ".png" : ".blob"));
+    }
+
+    private static File getMetaFile(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(file.getParentFile(), (dot < 0 ? name : name.substring(0, dot)) + ".json");
+    }
+
     @NonNull
     static File getCacheFile(Context context, long id, String source, String extension) {
         File dir = new File(context.getFilesDir(), "images");
@@ -945,4 +1229,20 @@ class ImageHelper {
 
         return (lum / n);
     }
+
+    private static class CachedBitmap {
+        private final Bitmap bitmap;
+        private final int scale;
+        private final int width;
+        private final int height;
+        private volatile long checked;
+
+        CachedBitmap(Bitmap bitmap, int scale, int width, int height) {
+            this.bitmap = bitmap;
+            this.scale = scale;
+            this.width = width;
+            this.height = height;
+            this.checked = new Date().getTime();
+        }
+    }
 }
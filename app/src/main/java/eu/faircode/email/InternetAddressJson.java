@@ -15,10 +15,6 @@ package eu.faircode.email;
     Copyright 2018-2022 by Marcel Bokhorst (M66B)
 */
 
-import android.text.TextUtils;
-
-import org.json.JSONObject;
-
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
 
@@ -27,7 +23,9 @@ import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 
 public class InternetAddressJson extends InternetAddress {
-    private JSONObject json;
+    private String email;
+    private String personal;
+    private volatile boolean parsed = false;
 
     private InternetAddressJson() {
     }
@@ -44,9 +42,10 @@ public class InternetAddressJson extends InternetAddress {
     private InternetAddressJson(String address, String personal, String charset) throws UnsupportedEncodingException {
     }
 
-    public static Address from(JSONObject json) {
+    public static Address from(String email, String personal) {
         InternetAddressJson result = new InternetAddressJson();
-        result.json = json;
+        result.email = email;
+        result.personal = personal;
         return result;
     }
 
@@ -98,19 +97,19 @@ public class InternetAddressJson extends InternetAddress {
         super.validate();
     }
 
-    private synchronized void ensureParsed() {
-        if (this.json != null) {
-            try {
-                String email = json.getString("address");
-                String personal = json.optString("personal");
-                if (TextUtils.isEmpty(personal))
-                    personal = null;
-                this.setAddress(email);
-                this.setPersonal(personal, StandardCharsets.UTF_8.name());
-            } catch (Throwable ex) {
-                Log.e(ex);
+    private void ensureParsed() {
+        if (parsed)
+            return;
+        synchronized (this) {
+            if (!parsed) {
+                try {
+                    this.setAddress(email);
+                    this.setPersonal(personal, StandardCharsets.UTF_8.name());
+                } catch (Throwable ex) {
+                    Log.e(ex);
+                }
+                parsed = true;
             }
-            this.json = null;
         }
     }
 }
\ No newline at end of file
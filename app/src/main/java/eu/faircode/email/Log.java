@@ -182,29 +182,37 @@ public class Log {
         return (BuildConfig.DEBUG ? android.util.Log.INFO : android.util.Log.WARN);
     }
 
+    public static boolean isDebugEnabled() {
+        return (level <= android.util.Log.DEBUG);
+    }
+
+    public static boolean isInfoEnabled() {
+        return (level <= android.util.Log.INFO || BuildConfig.DEBUG);
+    }
+
     public static int d(String msg) {
-        if (level <= android.util.Log.DEBUG)
+        if (isDebugEnabled())
             return android.util.Log.d(TAG, msg);
         else
             return 0;
     }
 
     public static int d(String tag, String msg) {
-        if (level <= android.util.Log.DEBUG)
+        if (isDebugEnabled())
             return android.util.Log.d(tag, msg);
         else
             return 0;
     }
 
     public static int i(String msg) {
-        if (level <= android.util.Log.INFO || BuildConfig.DEBUG)
+        if (isInfoEnabled())
             return android.util.Log.i(TAG, msg);
         else
             return 0;
     }
 
     public static int i(String tag, String msg) {
-        if (level <= android.util.Log.INFO || BuildConfig.DEBUG)
+        if (isInfoEnabled())
             return android.util.Log.i(tag, msg);
         else
             return 0;
@@ -1871,6 +1879,14 @@ public class Log {
         sb.append(String.format("Contact lookup: %d cached: %d\r\n",
                 contacts[0], contacts[1]));
 
+        int[] styles = HtmlHelper.getStyleCacheStats();
+        sb.append(String.format("Style cache hits: %d misses: %d size: %d\r\n",
+                styles[0], styles[1], styles[2]));
+
+        long[] fts = WorkerFts.getStats();
+        sb.append(String.format("FTS indexed: %d in %d ms %d/s\r\n",
+                fts[0], fts[1], fts[2]));
+
         Locale slocale = Resources.getSystem().getConfiguration().locale;
         String language = prefs.getString("language", null);
         sb.append(String.format("Locale: def=%s sys=%s lang=%s\r\n",
@@ -2815,10 +2831,8 @@ public class Log {
         attachment.progress = 0;
         attachment.id = db.attachment().insertAttachment(attachment);
 
-        MessageClassifier.save(context);
-        File source = MessageClassifier.getFile(context, false);
         File target = attachment.getFile(context);
-        Helper.copy(source, target);
+        MessageClassifier.export(context, target);
 
         db.attachment().setDownloaded(attachment.id, target.length());
     }
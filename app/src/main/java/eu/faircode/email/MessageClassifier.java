@@ -25,38 +25,47 @@ import android.os.Build;
 import android.text.TextUtils;
 import android.util.JsonReader;
 import android.util.JsonWriter;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import androidx.annotation.NonNull;
 import androidx.preference.PreferenceManager;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.mail.Address;
 import javax.mail.internet.InternetAddress;
 
 public class MessageClassifier {
-    private static boolean loaded = false;
-    private static boolean dirty = false;
-    private static final Map<Long, List<String>> accountMsgIds = new HashMap<>();
-    private static final Map<Long, Map<String, Integer>> classMessages = new HashMap<>();
-    private static final Map<Long, Map<String, Map<String, Frequency>>> wordClassFrequency = new HashMap<>();
+    private static final Map<Long, Model> models = new HashMap<>();
 
     private static final int MAX_WORDS = 1000;
+    private static final int MODEL_MAGIC = 0x4645434C; // FECL
+    private static final int MODEL_VERSION = 1;
 
-    static synchronized void classify(EntityMessage message, EntityFolder folder, boolean added, Context context) {
+    static void classify(EntityMessage message, EntityFolder folder, boolean added, Context context) {
         try {
             if (!isEnabled(context))
                 return;
@@ -66,24 +75,22 @@ public class MessageClassifier {
 
             long start = new Date().getTime();
 
-            // Build text to classify
+            // Build text to classify outside of the model lock
             List<String> texts = getTexts(message, context);
             if (texts.size() == 0)
                 return;
 
             // Load data if needed
-            load(context);
-
-            // Initialize account if needed
-            if (!accountMsgIds.containsKey(folder.account))
-                accountMsgIds.put(folder.account, new ArrayList<>());
-            if (!classMessages.containsKey(folder.account))
-                classMessages.put(folder.account, new HashMap<>());
-            if (!wordClassFrequency.containsKey(folder.account))
-                wordClassFrequency.put(folder.account, new HashMap<>());
-
-            // Classify texts
-            String classified = classify(message, folder.name, texts, added, context);
+            Model model = getModel(context, folder.account);
+
+            // Classify texts, accounts are classified concurrently
+            String classified;
+            boolean known;
+            synchronized (model) {
+                classified = classify(message, model, folder.name, texts, added, context);
+                known = (message.msgid != null && model.msgids.contains(message.msgid));
+                model.dirty = true;
+            }
 
             long elapsed = new Date().getTime() - start;
             EntityLog.log(context, EntityLog.Type.Classification, message,
@@ -105,7 +112,7 @@ public class MessageClassifier {
                     !TextUtils.isEmpty(message.msgid) &&
                     !message.hasKeyword(MessageHelper.FLAG_CLASSIFIED) &&
                     (!message.hasKeyword(MessageHelper.FLAG_FILTERED) || BuildConfig.DEBUG) &&
-                    !accountMsgIds.get(folder.account).contains(message.msgid) &&
+                    !known &&
                     !EntityFolder.JUNK.equals(folder.type)) {
                 boolean pro = ActivityBilling.isPro(context);
 
@@ -127,10 +134,10 @@ public class MessageClassifier {
                 }
 
                 //if (message.ui_hide)
-                //    accountMsgIds.get(folder.account).add(message.msgid);
+                //    synchronized (model) {
+                //        model.msgids.add(message.msgid);
+                //    }
             }
-
-            dirty = true;
         } catch (Throwable ex) {
             Log.e(ex);
         }
@@ -170,34 +177,34 @@ public class MessageClassifier {
         if (message.subject != null)
             texts.add(message.subject);
 
-        String text = HtmlHelper.getFullText(file);
+        String text = HtmlHelper.getFullText(context, message.id);
         texts.add(text);
 
         return texts;
     }
 
-    private static String classify(EntityMessage message, @NonNull String currentClass, @NonNull List<String> texts, boolean added, @NonNull Context context) {
+    private static String classify(EntityMessage message, @NonNull Model model, @NonNull String currentClass, @NonNull List<String> texts, boolean added, @NonNull Context context) {
         State state = new State();
 
         // Check classes
         DB db = DB.getInstance(context);
-        for (String clazz : new ArrayList<>(classMessages.get(message.account).keySet())) {
-            EntityFolder folder = db.folder().getFolderByName(message.account, clazz);
+        for (int i = model.classMessages.size() - 1; i >= 0; i--) {
+            int clazz = model.classMessages.keyAt(i);
+            String name = model.classes.get(clazz);
+            EntityFolder folder = db.folder().getFolderByName(message.account, name);
             if (folder == null || !folder.auto_classify_source) {
                 EntityLog.log(context, EntityLog.Type.Classification, message,
                         "Classifier deleting folder" +
-                                " class=" + message.account + ":" + clazz +
+                                " class=" + message.account + ":" + name +
                                 " exists=" + (folder != null));
-                classMessages.get(message.account).remove(clazz);
-                for (String word : wordClassFrequency.get(message.account).keySet())
-                    wordClassFrequency.get(message.account).get(word).remove(clazz);
+                model.deleteClass(clazz);
             }
         }
 
         Log.i("Classifier texts=" + texts.size());
         for (String text : texts) {
             // First word
-            processWord(message.account, added, null, state);
+            processWord(model, added, null, state);
 
             // Process words
             if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
@@ -205,8 +212,7 @@ public class MessageClassifier {
                 boundary.setText(text);
                 int start = boundary.first();
                 for (int end = boundary.next(); end != java.text.BreakIterator.DONE; end = boundary.next()) {
-                    String word = text.substring(start, end);
-                    processWord(message.account, added, word, state);
+                    processWord(model, added, text, start, end, state);
                     if (state.words.size() >= MAX_WORDS)
                         break;
                     start = end;
@@ -217,8 +223,7 @@ public class MessageClassifier {
                 boundary.setText(text);
                 int start = boundary.first();
                 for (int end = boundary.next(); end != android.icu.text.BreakIterator.DONE; end = boundary.next()) {
-                    String word = text.substring(start, end);
-                    processWord(message.account, added, word, state);
+                    processWord(model, added, text, start, end, state);
                     if (state.words.size() >= MAX_WORDS)
                         break;
                     start = end;
@@ -227,16 +232,16 @@ public class MessageClassifier {
         }
 
         // final word
-        processWord(message.account, added, null, state);
+        processWord(model, added, null, state);
 
         int maxMessages = 0;
-        for (String clazz : classMessages.get(message.account).keySet()) {
-            int count = classMessages.get(message.account).get(clazz);
+        for (int i = 0; i < model.classMessages.size(); i++) {
+            int count = model.classMessages.valueAt(i);
             if (count > maxMessages)
                 maxMessages = count;
         }
 
-        updateFrequencies(message.account, currentClass, added, state);
+        updateFrequencies(model, currentClass, added, state);
 
         if (maxMessages == 0) {
             Log.i("Classifier no messages account=" + message.account);
@@ -249,8 +254,9 @@ public class MessageClassifier {
         // Calculate chance per class
         int words = state.words.size() - texts.size() - 1;
         List<Chance> chances = new ArrayList<>();
-        for (String clazz : state.classStats.keySet()) {
-            Stat stat = state.classStats.get(clazz);
+        for (int i = 0; i < state.classStats.size(); i++) {
+            String clazz = model.classes.get(state.classStats.keyAt(i));
+            Stat stat = state.classStats.valueAt(i);
 
             double chance = stat.totalFrequency / maxMessages / words;
             Chance c = new Chance(clazz, chance);
@@ -283,7 +289,8 @@ public class MessageClassifier {
                 if (chance.chance > class_min_chance) {
                     EntityFolder target = db.folder().getFolderByName(message.account, chance.clazz);
                     if (target != null && target.auto_classify_target) {
-                        Log.i("Classifier current=" + currentClass + " classified=" + chance.clazz);
+                        if (Log.isInfoEnabled())
+                            Log.i("Classifier current=" + currentClass + " classified=" + chance.clazz);
                         return chance.clazz;
                     }
                 }
@@ -301,22 +308,42 @@ public class MessageClassifier {
         if (c0 > class_min_chance && c1 < threshold)
             classification = chances.get(0).clazz;
 
-        Log.i("Classifier current=" + currentClass +
-                " c0=" + Math.round(c0 * 100 * 100) / 100.0 + ">" + Math.round(class_min_chance * 100) + "%" +
-                " c1=" + Math.round(c1 * 100 * 100) / 100.0 + "<" + Math.round(threshold * 100 * 100) / 100.0 + "%" +
-                " (" + Math.round(class_min_difference * 100) + "%)" +
-                " classified=" + classification);
+        if (Log.isInfoEnabled())
+            Log.i("Classifier current=" + currentClass +
+                    " c0=" + Math.round(c0 * 100 * 100) / 100.0 + ">" + Math.round(class_min_chance * 100) + "%" +
+                    " c1=" + Math.round(c1 * 100 * 100) / 100.0 + "<" + Math.round(threshold * 100 * 100) / 100.0 + "%" +
+                    " (" + Math.round(class_min_difference * 100) + "%)" +
+                    " classified=" + classification);
 
         return classification;
     }
 
-    private static void processWord(long account, boolean added, String word, State state) {
-        if (word != null) {
-            word = word.trim().toLowerCase();
-            if (word.length() < 2 || word.matches(".*\\d.*"))
+    private static void processWord(Model model, boolean added, String text, int start, int end, State state) {
+        // Trim without creating a substring
+        while (start < end && text.charAt(start) <= ' ')
+            start++;
+        while (end > start && text.charAt(end - 1) <= ' ')
+            end--;
+
+        // Lower casing can expand a single letter
+        if (end - start == 0 ||
+                (end - start == 1 && !Character.isLetter(text.charAt(start))))
+            return;
+
+        for (int i = start; i < end; i++) {
+            char kar = text.charAt(i);
+            if (kar >= '0' && kar <= '9')
                 return;
         }
 
+        String word = text.substring(start, end).toLowerCase();
+        if (word.length() < 2)
+            return;
+
+        processWord(model, added, word, state);
+    }
+
+    private static void processWord(Model model, boolean added, String word, State state) {
         if (word != null ||
                 state.words.size() == 0 ||
                 state.words.get(state.words.size() - 1) != null)
@@ -335,13 +362,20 @@ public class MessageClassifier {
         if (current == null)
             return;
 
-        Map<String, Frequency> classFrequency = wordClassFrequency.get(account).get(current);
+        int id = model.getWordId(current);
+        if (id < 0)
+            return;
+
+        Frequency[] classFrequency = model.frequencies.get(id);
         if (classFrequency == null)
             return;
 
-        for (String clazz : classFrequency.keySet()) {
-            Frequency frequency = classFrequency.get(clazz);
-            if (frequency.count <= 0)
+        int b = (before == null ? -1 : model.getWordId(before));
+        int a = (after == null ? -1 : model.getWordId(after));
+
+        for (int clazz = 0; clazz < classFrequency.length; clazz++) {
+            Frequency frequency = classFrequency[clazz];
+            if (frequency == null || frequency.count <= 0)
                 continue;
 
             Stat stat = state.classStats.get(clazz);
@@ -351,16 +385,11 @@ public class MessageClassifier {
             }
 
             int c = (frequency.count - frequency.duplicates);
-            Integer b = (before == null ? null : frequency.before.get(before));
-            Integer a = (after == null ? null : frequency.after.get(after));
+            int bi = (b < 0 ? -1 : frequency.before.indexOfKey(b));
+            int ai = (a < 0 ? -1 : frequency.after.indexOfKey(a));
             double f = (c +
-                    (b == null ? 2 * c : 2.0 * b / frequency.count * c) +
-                    (a == null ? 2 * c : 2.0 * a / frequency.count * c)) / 5.0;
-            //Log.i("Classifier " +
-            //        before + "/" + b + "/" + frequency.before.get(before) + " " +
-            //        after + "/" + a + "/" + frequency.after.get(after) + " " +
-            //        current + "/" + c + "=" + frequency.count + "-" + frequency.duplicates +
-            //        " f=" + f);
+                    (bi < 0 ? 2 * c : 2.0 * frequency.before.valueAt(bi) / frequency.count * c) +
+                    (ai < 0 ? 2 * c : 2.0 * frequency.after.valueAt(ai) / frequency.count * c)) / 5.0;
 
             stat.totalFrequency += f;
             stat.matchedWords++;
@@ -370,15 +399,21 @@ public class MessageClassifier {
         }
     }
 
-    private static void updateFrequencies(long account, @NonNull String currentClass, boolean added, @NonNull State state) {
-        Integer m = classMessages.get(account).get(currentClass);
-        m = (m == null ? 0 : m) + (added ? 1 : -1);
-        if (m <= 0)
-            classMessages.get(account).remove(currentClass);
-        else
-            classMessages.get(account).put(currentClass, m);
+    private static void updateFrequencies(Model model, @NonNull String currentClass, boolean added, @NonNull State state) {
+        int clazz = (added ? model.addClass(currentClass) : model.getClassId(currentClass));
+
+        int m = (clazz < 0 ? 0 : model.classMessages.get(clazz, 0)) + (added ? 1 : -1);
+        if (m <= 0) {
+            if (clazz >= 0)
+                model.classMessages.delete(clazz);
+        } else
+            model.classMessages.put(clazz, m);
         Log.i("Classifier " + currentClass + "=" + m + " msgs");
 
+        if (clazz < 0)
+            return;
+
+        Set<String> seen = new HashSet<>();
         for (int i = 1; i < state.words.size() - 1; i++) {
             String before = state.words.get(i - 1);
             String current = state.words.get(i);
@@ -387,302 +422,469 @@ public class MessageClassifier {
             if (current == null)
                 continue;
 
-            Map<String, Frequency> classFrequency = wordClassFrequency.get(account).get(current);
+            boolean duplicate = !seen.add(current);
+
             if (added) {
-                if (classFrequency == null) {
-                    classFrequency = new HashMap<>();
-                    wordClassFrequency.get(account).put(current, classFrequency);
-                }
-                Frequency c = classFrequency.get(currentClass);
-                if (c == null) {
-                    c = new Frequency();
-                    classFrequency.put(currentClass, c);
-                }
-                c.add(before, after, 1, state.words.indexOf(current) < i);
+                int b = (before == null ? -1 : model.addWord(before));
+                int a = (after == null ? -1 : model.addWord(after));
+                Frequency c = model.addFrequency(model.addWord(current), clazz);
+                c.add(b, a, 1, duplicate);
             } else {
-                Frequency c = (classFrequency == null ? null : classFrequency.get(currentClass));
-                if (c != null)
-                    c.add(before, after, -1, state.words.indexOf(current) < i);
+                int id = model.getWordId(current);
+                Frequency c = (id < 0 ? null : model.getFrequency(id, clazz));
+                if (c != null) {
+                    int b = (before == null ? -1 : model.getWordId(before));
+                    int a = (after == null ? -1 : model.getWordId(after));
+                    c.add(b, a, -1, duplicate);
+                }
             }
         }
     }
 
     static synchronized void save(@NonNull Context context) throws IOException {
-        if (!dirty)
-            return;
+        for (Model model : models.values())
+            synchronized (model) {
+                if (model.dirty)
+                    _save(context, model);
+            }
+    }
 
+    private static void _save(@NonNull Context context, @NonNull Model model) throws IOException {
         long start = new Date().getTime();
 
-        File file = getFile(context, false);
-        File backup = getFile(context, true);
-        backup.delete();
-        if (file.exists())
-            file.renameTo(backup);
+        File file = getFile(context, model.account);
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
 
         Log.i("Classifier save " + file);
-        try (JsonWriter writer = new JsonWriter(new BufferedWriter(new FileWriter(file)))) {
-            writer.beginObject();
-
-            writer.name("version").value(2);
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            os.writeInt(MODEL_MAGIC);
+            os.writeInt(MODEL_VERSION);
+
+            os.writeInt(model.words.size());
+            for (String word : model.words)
+                writeString(os, word);
+
+            os.writeInt(model.classes.size());
+            for (String clazz : model.classes)
+                writeString(os, clazz);
+
+            os.writeInt(model.classMessages.size());
+            for (int i = 0; i < model.classMessages.size(); i++) {
+                os.writeInt(model.classMessages.keyAt(i));
+                os.writeInt(model.classMessages.valueAt(i));
+            }
 
-            writer.name("messages");
-            writer.beginArray();
-            for (Long account : classMessages.keySet())
-                for (String clazz : classMessages.get(account).keySet()) {
-                    writer.beginObject();
-                    writer.name("account").value(account);
-                    writer.name("class").value(clazz);
-                    writer.name("count").value(classMessages.get(account).get(clazz));
-                    writer.endObject();
+            int count = 0;
+            for (Frequency[] classFrequency : model.frequencies)
+                if (classFrequency != null)
+                    for (Frequency f : classFrequency)
+                        if (f != null)
+                            count++;
+
+            os.writeInt(count);
+            for (int word = 0; word < model.frequencies.size(); word++) {
+                Frequency[] classFrequency = model.frequencies.get(word);
+                if (classFrequency == null)
+                    continue;
+                for (int clazz = 0; clazz < classFrequency.length; clazz++) {
+                    Frequency f = classFrequency[clazz];
+                    if (f == null)
+                        continue;
+                    os.writeInt(word);
+                    os.writeInt(clazz);
+                    os.writeInt(f.count);
+                    os.writeInt(f.duplicates);
+                    writeCounts(os, f.before);
+                    writeCounts(os, f.after);
                 }
-            writer.endArray();
+            }
 
-            writer.name("words");
-            writer.beginArray();
-            for (Long account : wordClassFrequency.keySet())
-                for (String word : wordClassFrequency.get(account).keySet()) {
-                    Map<String, Frequency> classFrequency = wordClassFrequency.get(account).get(word);
-                    for (String clazz : classFrequency.keySet()) {
-                        Frequency f = classFrequency.get(clazz);
-                        writer.beginObject();
+            os.writeInt(model.msgids.size());
+            for (String msgid : model.msgids)
+                writeString(os, msgid);
+        }
 
-                        writer.name("account").value(account);
-                        writer.name("word").value(word);
-                        writer.name("class").value(clazz);
-                        writer.name("count").value(f.count);
-                        writer.name("dup").value(f.duplicates);
+        if (!tmp.renameTo(file))
+            throw new IOException("Could not rename " + tmp + " to " + file);
 
-                        writer.name("before");
-                        writer.beginObject();
-                        for (String key : f.before.keySet())
-                            writer.name(key).value(f.before.get(key));
-                        writer.endObject();
+        model.dirty = false;
 
-                        writer.name("after");
-                        writer.beginObject();
-                        for (String key : f.after.keySet())
-                            writer.name(key).value(f.after.get(key));
-                        writer.endObject();
+        long elapsed = new Date().getTime() - start;
+        Log.i("Classifier data saved account=" + model.account +
+                " words=" + model.words.size() + " size=" + file.length() +
+                " elapsed=" + elapsed);
+    }
 
-                        writer.endObject();
-                    }
-                }
-            writer.endArray();
+    @NonNull
+    private static synchronized Model getModel(@NonNull Context context, long account) {
+        Model model = models.get(account);
+        if (model != null)
+            return model;
 
-            writer.name("classified");
-            writer.beginArray();
-            for (Long account : accountMsgIds.keySet()) {
-                writer.beginObject();
-                writer.name("account").value(account);
-                writer.name("messages");
-                writer.beginArray();
-                for (String msgid : accountMsgIds.get(account))
-                    writer.value(msgid);
-                writer.endArray();
-                writer.endObject();
-            }
-            writer.endArray();
+        migrate(context);
 
-            writer.endObject();
+        model = models.get(account);
+        if (model != null)
+            return model;
+
+        File file = getFile(context, account);
+        try {
+            model = _load(file, account);
+        } catch (Throwable ex) {
+            Log.e(ex);
+            file.delete();
+            model = new Model(account);
         }
+        models.put(account, model);
 
-        backup.delete();
+        return model;
+    }
 
-        dirty = false;
+    @NonNull
+    private static Model _load(@NonNull File file, long account) throws IOException {
+        Model model = new Model(account);
+        if (!file.exists())
+            return model;
+
+        Log.i("Classifier read " + file);
+        long start = new Date().getTime();
+        try (FileInputStream is = new FileInputStream(file)) {
+            FileChannel channel = is.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MODEL_MAGIC)
+                throw new IOException("Invalid classifier data " + file);
+            int version = buffer.getInt();
+            if (version != MODEL_VERSION)
+                throw new IOException("Unsupported classifier version=" + version);
+
+            int words = buffer.getInt();
+            for (int i = 0; i < words; i++)
+                model.addWord(readString(buffer));
+
+            int classes = buffer.getInt();
+            for (int i = 0; i < classes; i++)
+                model.addClass(readString(buffer));
+
+            int messages = buffer.getInt();
+            for (int i = 0; i < messages; i++)
+                model.classMessages.append(buffer.getInt(), buffer.getInt());
+
+            int frequencies = buffer.getInt();
+            for (int i = 0; i < frequencies; i++) {
+                Frequency f = model.addFrequency(buffer.getInt(), buffer.getInt());
+                f.count = buffer.getInt();
+                f.duplicates = buffer.getInt();
+                readCounts(buffer, f.before);
+                readCounts(buffer, f.after);
+            }
+
+            int msgids = buffer.getInt();
+            for (int i = 0; i < msgids; i++)
+                model.msgids.add(readString(buffer));
+        }
 
         long elapsed = new Date().getTime() - start;
-        Log.i("Classifier data saved elapsed=" + elapsed);
+        Log.i("Classifier data loaded account=" + account +
+                " words=" + model.words.size() + " size=" + file.length() +
+                " elapsed=" + elapsed);
+
+        return model;
     }
 
-    private static synchronized void load(@NonNull Context context) {
-        if (loaded || dirty)
+    private static void migrate(@NonNull Context context) {
+        File file = getLegacyFile(context, false);
+        File backup = getLegacyFile(context, true);
+        if (!file.exists() && !backup.exists())
             return;
 
-        clear(context);
-        File file = getFile(context, false);
-        File backup = getFile(context, true);
         if (backup.exists())
             file = backup;
+
         try {
-            _load(file);
+            _migrate(file);
+            for (Model model : models.values())
+                _save(context, model);
         } catch (Throwable ex) {
             Log.e(ex);
-            file.delete();
-            clear(context);
+            for (Model model : models.values())
+                getFile(context, model.account).delete();
+            models.clear();
         }
+
+        getLegacyFile(context, false).delete();
+        getLegacyFile(context, true).delete();
     }
 
-    private static synchronized void _load(File file) throws IOException {
-        Log.i("Classifier read " + file);
+    private static void _migrate(File file) throws IOException {
+        Log.i("Classifier migrate " + file);
         long start = new Date().getTime();
-        if (file.exists())
-            try (JsonReader reader = new JsonReader(new BufferedReader(new FileReader(file)))) {
-                reader.beginObject();
-                while (reader.hasNext())
-                    switch (reader.nextName()) {
-                        case "version":
-                            reader.nextInt();
-                            break;
-
-                        case "messages":
-                            reader.beginArray();
-                            while (reader.hasNext()) {
-                                Long account = null;
-                                String clazz = null;
-                                Integer count = null;
-
-                                reader.beginObject();
-                                while (reader.hasNext())
-                                    switch (reader.nextName()) {
-                                        case "account":
-                                            account = reader.nextLong();
-                                            break;
-                                        case "class":
-                                            clazz = reader.nextString();
-                                            break;
-                                        case "count":
-                                            count = reader.nextInt();
-                                            break;
-                                    }
-                                reader.endObject();
-
-                                if (account == null || clazz == null || count == null)
-                                    continue;
-
-                                if (!classMessages.containsKey(account))
-                                    classMessages.put(account, new HashMap<>());
-                                classMessages.get(account).put(clazz, count);
-                            }
-                            reader.endArray();
-                            break;
-
-                        case "words":
-                            reader.beginArray();
-                            while (reader.hasNext()) {
-                                Long account = null;
-                                String word = null;
-                                String clazz = null;
-                                Frequency f = new Frequency();
-
-                                reader.beginObject();
-                                while (reader.hasNext())
-                                    switch (reader.nextName()) {
-                                        case "account":
-                                            account = reader.nextLong();
-                                            break;
-                                        case "word":
-                                            word = reader.nextString();
-                                            break;
-                                        case "class":
-                                            clazz = reader.nextString();
-                                            break;
-                                        case "count":
-                                            f.count = reader.nextInt();
-                                            break;
-                                        case "dup":
-                                            f.duplicates = reader.nextInt();
-                                            break;
-                                        case "before":
-                                            reader.beginObject();
-                                            while (reader.hasNext())
-                                                f.before.put(reader.nextName(), reader.nextInt());
-                                            reader.endObject();
-                                            break;
-                                        case "after":
-                                            reader.beginObject();
-                                            while (reader.hasNext())
-                                                f.after.put(reader.nextName(), reader.nextInt());
-                                            reader.endObject();
-                                            break;
-                                    }
-                                reader.endObject();
-
-                                if (account == null || word == null || clazz == null)
-                                    continue;
-
-                                if (!wordClassFrequency.containsKey(account))
-                                    wordClassFrequency.put(account, new HashMap<>());
-
-                                Map<String, Frequency> classFrequency = wordClassFrequency.get(account).get(word);
-                                if (classFrequency == null) {
-                                    classFrequency = new HashMap<>();
-                                    wordClassFrequency.get(account).put(word, classFrequency);
+        try (JsonReader reader = new JsonReader(new BufferedReader(new FileReader(file)))) {
+            reader.beginObject();
+            while (reader.hasNext())
+                switch (reader.nextName()) {
+                    case "version":
+                        reader.nextInt();
+                        break;
+
+                    case "messages":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            Long account = null;
+                            String clazz = null;
+                            Integer count = null;
+
+                            reader.beginObject();
+                            while (reader.hasNext())
+                                switch (reader.nextName()) {
+                                    case "account":
+                                        account = reader.nextLong();
+                                        break;
+                                    case "class":
+                                        clazz = reader.nextString();
+                                        break;
+                                    case "count":
+                                        count = reader.nextInt();
+                                        break;
+                                }
+                            reader.endObject();
+
+                            if (account == null || clazz == null || count == null)
+                                continue;
+
+                            Model model = getLegacyModel(account);
+                            model.classMessages.put(model.addClass(clazz), count);
+                        }
+                        reader.endArray();
+                        break;
+
+                    case "words":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            Long account = null;
+                            String word = null;
+                            String clazz = null;
+                            Integer count = null;
+                            Integer duplicates = null;
+                            Map<String, Integer> before = new HashMap<>();
+                            Map<String, Integer> after = new HashMap<>();
+
+                            reader.beginObject();
+                            while (reader.hasNext())
+                                switch (reader.nextName()) {
+                                    case "account":
+                                        account = reader.nextLong();
+                                        break;
+                                    case "word":
+                                        word = reader.nextString();
+                                        break;
+                                    case "class":
+                                        clazz = reader.nextString();
+                                        break;
+                                    case "count":
+                                        count = reader.nextInt();
+                                        break;
+                                    case "dup":
+                                        duplicates = reader.nextInt();
+                                        break;
+                                    case "before":
+                                        reader.beginObject();
+                                        while (reader.hasNext())
+                                            before.put(reader.nextName(), reader.nextInt());
+                                        reader.endObject();
+                                        break;
+                                    case "after":
+                                        reader.beginObject();
+                                        while (reader.hasNext())
+                                            after.put(reader.nextName(), reader.nextInt());
+                                        reader.endObject();
+                                        break;
+                                }
+                            reader.endObject();
+
+                            if (account == null || word == null || clazz == null)
+                                continue;
+
+                            Model model = getLegacyModel(account);
+                            Frequency f = model.addFrequency(model.addWord(word), model.addClass(clazz));
+                            f.count = (count == null ? 0 : count);
+                            f.duplicates = (duplicates == null ? 0 : duplicates);
+                            for (String key : before.keySet())
+                                f.before.put(model.addWord(key), before.get(key));
+                            for (String key : after.keySet())
+                                f.after.put(model.addWord(key), after.get(key));
+                        }
+                        reader.endArray();
+                        break;
+
+                    case "classified":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            Long account = null;
+                            List<String> msgids = new ArrayList<>();
+
+                            reader.beginObject();
+                            while (reader.hasNext())
+                                switch (reader.nextName()) {
+                                    case "account":
+                                        account = reader.nextLong();
+                                        break;
+                                    case "messages":
+                                        reader.beginArray();
+                                        while (reader.hasNext())
+                                            msgids.add(reader.nextString());
+                                        reader.endArray();
+                                        break;
                                 }
+                            reader.endObject();
 
-                                classFrequency.put(clazz, f);
-                            }
-                            reader.endArray();
-                            break;
-
-                        case "classified":
-                            reader.beginArray();
-                            while (reader.hasNext()) {
-                                Long account = null;
-                                List<String> msgids = new ArrayList<>();
-
-                                reader.beginObject();
-                                while (reader.hasNext())
-                                    switch (reader.nextName()) {
-                                        case "account":
-                                            account = reader.nextLong();
-                                            break;
-                                        case "messages":
-                                            reader.beginArray();
-                                            while (reader.hasNext())
-                                                msgids.add(reader.nextString());
-                                            reader.endArray();
-                                            break;
-                                    }
-                                reader.endObject();
-
-                                if (account == null)
-                                    continue;
-
-                                accountMsgIds.put(account, msgids);
-                            }
-                            reader.endArray();
-                            break;
+                            if (account == null)
+                                continue;
+
+                            getLegacyModel(account).msgids.addAll(msgids);
+                        }
+                        reader.endArray();
+                        break;
+                }
+            reader.endObject();
+        }
+
+        long elapsed = new Date().getTime() - start;
+        Log.i("Classifier data migrated accounts=" + models.size() + " elapsed=" + elapsed);
+    }
+
+    @NonNull
+    private static Model getLegacyModel(long account) {
+        Model model = models.get(account);
+        if (model == null) {
+            model = new Model(account);
+            model.dirty = true;
+            models.put(account, model);
+        }
+        return model;
+    }
+
+    static synchronized void export(@NonNull Context context, @NonNull File file) throws IOException {
+        long start = new Date().getTime();
+
+        for (long account : getAccounts(context))
+            getModel(context, account);
+
+        Log.i("Classifier export " + file);
+        try (JsonWriter writer = new JsonWriter(new BufferedWriter(new FileWriter(file)))) {
+            writer.beginObject();
+
+            writer.name("version").value(2);
+
+            writer.name("messages");
+            writer.beginArray();
+            for (Model model : models.values())
+                synchronized (model) {
+                    for (int i = 0; i < model.classMessages.size(); i++) {
+                        writer.beginObject();
+                        writer.name("account").value(model.account);
+                        writer.name("class").value(model.classes.get(model.classMessages.keyAt(i)));
+                        writer.name("count").value(model.classMessages.valueAt(i));
+                        writer.endObject();
                     }
-                reader.endObject();
-            }
+                }
+            writer.endArray();
 
-        loaded = true;
-        dirty = false;
+            writer.name("words");
+            writer.beginArray();
+            for (Model model : models.values())
+                synchronized (model) {
+                    for (int word = 0; word < model.frequencies.size(); word++) {
+                        Frequency[] classFrequency = model.frequencies.get(word);
+                        if (classFrequency == null)
+                            continue;
+                        for (int clazz = 0; clazz < classFrequency.length; clazz++) {
+                            Frequency f = classFrequency[clazz];
+                            if (f == null)
+                                continue;
+
+                            writer.beginObject();
+
+                            writer.name("account").value(model.account);
+                            writer.name("word").value(model.words.get(word));
+                            writer.name("class").value(model.classes.get(clazz));
+                            writer.name("count").value(f.count);
+                            writer.name("dup").value(f.duplicates);
+
+                            writer.name("before");
+                            writer.beginObject();
+                            for (int i = 0; i < f.before.size(); i++)
+                                writer.name(model.words.get(f.before.keyAt(i))).value(f.before.valueAt(i));
+                            writer.endObject();
+
+                            writer.name("after");
+                            writer.beginObject();
+                            for (int i = 0; i < f.after.size(); i++)
+                                writer.name(model.words.get(f.after.keyAt(i))).value(f.after.valueAt(i));
+                            writer.endObject();
+
+                            writer.endObject();
+                        }
+                    }
+                }
+            writer.endArray();
+
+            writer.name("classified");
+            writer.beginArray();
+            for (Model model : models.values())
+                synchronized (model) {
+                    writer.beginObject();
+                    writer.name("account").value(model.account);
+                    writer.name("messages");
+                    writer.beginArray();
+                    for (String msgid : model.msgids)
+                        writer.value(msgid);
+                    writer.endArray();
+                    writer.endObject();
+                }
+            writer.endArray();
+
+            writer.endObject();
+        }
 
         long elapsed = new Date().getTime() - start;
-        Log.i("Classifier data loaded elapsed=" + elapsed);
+        Log.i("Classifier data exported elapsed=" + elapsed);
     }
 
     static synchronized void cleanup(@NonNull Context context) {
         try {
-            load(context);
+            for (long account : getAccounts(context))
+                getModel(context, account);
 
             DB db = DB.getInstance(context);
-            for (Long account : accountMsgIds.keySet()) {
-                List<String> msgids = accountMsgIds.get(account);
-                Log.i("Classifier cleanup account=" + account + " count=" + msgids.size());
-                for (String msgid : new ArrayList<>(msgids)) {
-                    List<EntityMessage> messages = db.message().getMessagesByMsgId(account, msgid);
-                    if (messages != null && messages.size() == 0) {
-                        Log.i("Classifier removing msgid=" + msgid);
-                        msgids.remove(msgid);
-                        dirty = true;
+            for (Model model : models.values())
+                synchronized (model) {
+                    Log.i("Classifier cleanup account=" + model.account + " count=" + model.msgids.size());
+                    for (String msgid : new ArrayList<>(model.msgids)) {
+                        List<EntityMessage> messages = db.message().getMessagesByMsgId(model.account, msgid);
+                        if (messages != null && messages.size() == 0) {
+                            if (Log.isInfoEnabled())
+                                Log.i("Classifier removing msgid=" + msgid);
+                            model.msgids.remove(msgid);
+                            model.dirty = true;
+                        }
                     }
                 }
-            }
 
-            if (dirty)
-                save(context);
+            save(context);
         } catch (Throwable ex) {
             Log.e(ex);
         }
     }
 
     static synchronized void clear(@NonNull Context context) {
-        accountMsgIds.clear();
-        classMessages.clear();
-        wordClassFrequency.clear();
-        dirty = true;
+        models.clear();
+        File[] files = getDir(context).listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        getLegacyFile(context, false).delete();
+        getLegacyFile(context, true).delete();
         Log.i("Classifier data cleared");
     }
 
@@ -691,23 +893,153 @@ public class MessageClassifier {
         return prefs.getBoolean("classification", false);
     }
 
-    static File getFile(@NonNull Context context, boolean backup) {
+    @NonNull
+    private static List<Long> getAccounts(@NonNull Context context) {
+        List<Long> result = new ArrayList<>();
+        File[] files = getDir(context).listFiles();
+        if (files != null)
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(".bin"))
+                    try {
+                        result.add(Long.parseLong(name.substring(0, name.length() - 4)));
+                    } catch (NumberFormatException ex) {
+                        Log.w(ex);
+                    }
+            }
+        return result;
+    }
+
+    private static File getDir(@NonNull Context context) {
+        File dir = new File(context.getFilesDir(), "classifier");
+        if (!dir.exists())
+            dir.mkdir();
+        return dir;
+    }
+
+    private static File getFile(@NonNull Context context, long account) {
+        return new File(getDir(context), account + ".bin");
+    }
+
+    private static File getLegacyFile(@NonNull Context context, boolean backup) {
         return new File(context.getFilesDir(),
                 backup ? "classifier.backup" : "classifier.json");
     }
 
+    private static void writeString(DataOutputStream os, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        os.writeInt(bytes.length);
+        os.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeCounts(DataOutputStream os, SparseIntArray counts) throws IOException {
+        os.writeInt(counts.size());
+        for (int i = 0; i < counts.size(); i++) {
+            os.writeInt(counts.keyAt(i));
+            os.writeInt(counts.valueAt(i));
+        }
+    }
+
+    private static void readCounts(ByteBuffer buffer, SparseIntArray counts) {
+        int size = buffer.getInt();
+        for (int i = 0; i < size; i++)
+            counts.append(buffer.getInt(), buffer.getInt());
+    }
+
+    private static class Model {
+        private final long account;
+        private boolean dirty = false;
+        private final List<String> words = new ArrayList<>();
+        private final Map<String, Integer> wordIds = new HashMap<>();
+        private final List<String> classes = new ArrayList<>();
+        private final Map<String, Integer> classIds = new HashMap<>();
+        private final SparseIntArray classMessages = new SparseIntArray();
+        private final List<Frequency[]> frequencies = new ArrayList<>();
+        private final Set<String> msgids = new HashSet<>();
+
+        private Model(long account) {
+            this.account = account;
+        }
+
+        private int getWordId(String word) {
+            Integer id = wordIds.get(word);
+            return (id == null ? -1 : id);
+        }
+
+        private int addWord(String word) {
+            Integer id = wordIds.get(word);
+            if (id == null) {
+                id = words.size();
+                words.add(word);
+                wordIds.put(word, id);
+                frequencies.add(null);
+            }
+            return id;
+        }
+
+        private int getClassId(String clazz) {
+            Integer id = classIds.get(clazz);
+            return (id == null ? -1 : id);
+        }
+
+        private int addClass(String clazz) {
+            Integer id = classIds.get(clazz);
+            if (id == null) {
+                id = classes.size();
+                classes.add(clazz);
+                classIds.put(clazz, id);
+            }
+            return id;
+        }
+
+        private void deleteClass(int clazz) {
+            classMessages.delete(clazz);
+            for (Frequency[] classFrequency : frequencies)
+                if (classFrequency != null && clazz < classFrequency.length)
+                    classFrequency[clazz] = null;
+            dirty = true;
+        }
+
+        private Frequency getFrequency(int word, int clazz) {
+            Frequency[] classFrequency = frequencies.get(word);
+            if (classFrequency == null || clazz >= classFrequency.length)
+                return null;
+            return classFrequency[clazz];
+        }
+
+        private Frequency addFrequency(int word, int clazz) {
+            Frequency[] classFrequency = frequencies.get(word);
+            if (classFrequency == null || clazz >= classFrequency.length) {
+                Frequency[] grown = new Frequency[clazz + 1];
+                if (classFrequency != null)
+                    System.arraycopy(classFrequency, 0, grown, 0, classFrequency.length);
+                classFrequency = grown;
+                frequencies.set(word, classFrequency);
+            }
+            if (classFrequency[clazz] == null)
+                classFrequency[clazz] = new Frequency();
+            return classFrequency[clazz];
+        }
+    }
+
     private static class State {
         private final List<String> words = new ArrayList<>();
-        private final Map<String, Stat> classStats = new HashMap<>();
+        private final SparseArray<Stat> classStats = new SparseArray<>();
     }
 
     private static class Frequency {
         private int count = 0;
         private int duplicates = 0;
-        private Map<String, Integer> before = new HashMap<>();
-        private Map<String, Integer> after = new HashMap<>();
+        private final SparseIntArray before = new SparseIntArray();
+        private final SparseIntArray after = new SparseIntArray();
 
-        private void add(String b, String a, int c, boolean duplicate) {
+        private void add(int b, int a, int c, boolean duplicate) {
             if (count + c < 0)
                 return;
 
@@ -716,15 +1048,11 @@ public class MessageClassifier {
             if (duplicate)
                 duplicates += c;
 
-            if (b != null) {
-                Integer x = before.get(b);
-                before.put(b, (x == null ? 0 : x) + c);
-            }
+            if (b >= 0)
+                before.put(b, before.get(b, 0) + c);
 
-            if (a != null) {
-                Integer x = after.get(a);
-                after.put(a, (x == null ? 0 : x) + c);
-            }
+            if (a >= 0)
+                after.put(a, after.get(a, 0) + c);
         }
     }
 
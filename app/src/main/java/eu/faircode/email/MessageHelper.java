@@ -1569,19 +1569,16 @@ public class MessageHelper {
         if (thread == null)
             thread = account + ":" + getHash() + ":" + uid;
 
-        // Sent before
+        // Sent before, sent after
+        List<String> olds = new ArrayList<>();
         for (TupleThreadInfo info : infos)
-            if (info.isReferencing(msgid) && !thread.equals(info.thread)) {
-                Log.w("Updating before thread from " + info.thread + " to " + thread);
-                db.message().updateMessageThread(account, info.thread, thread, null);
-            }
-
-        // Sent after
-        for (TupleThreadInfo info : infos)
-            if (info.isReferenced(msgid) && !thread.equals(info.thread)) {
-                Log.w("Updating after thread from " + info.thread + " to " + thread);
-                db.message().updateMessageThread(account, info.thread, thread, null);
-            }
+            if ((info.isReferencing(msgid) || info.isReferenced(msgid)) &&
+                    info.thread != null && !thread.equals(info.thread) && !olds.contains(info.thread))
+                olds.add(info.thread);
+        if (olds.size() > 0) {
+            Log.w("Updating threads from " + TextUtils.join(",", olds) + " to " + thread);
+            db.message().updateMessageThreads(account, olds, thread, null);
+        }
 
         boolean subject_threading = prefs.getBoolean("subject_threading", false);
         if (subject_threading && !isReport()) {
@@ -1589,12 +1586,14 @@ public class MessageHelper {
             String subject = getSubject();
             long since = new Date().getTime() - MAX_SUBJECT_AGE * 3600 * 1000L;
             if (!TextUtils.isEmpty(sender) && !TextUtils.isEmpty(subject)) {
-                List<EntityMessage> subjects = db.message().getMessagesBySubject(account, sender, subject, since);
-                for (EntityMessage message : subjects)
-                    if (!thread.equals(message.thread)) {
-                        Log.w("Updating subject thread from " + message.thread + " to " + thread);
-                        db.message().updateMessageThread(message.account, message.thread, thread, since);
-                    }
+                List<String> subjects = new ArrayList<>();
+                for (EntityMessage message : db.message().getMessagesBySubject(account, sender, subject, since))
+                    if (message.thread != null && !thread.equals(message.thread) && !subjects.contains(message.thread))
+                        subjects.add(message.thread);
+                if (subjects.size() > 0) {
+                    Log.w("Updating subject threads from " + TextUtils.join(",", subjects) + " to " + thread);
+                    db.message().updateMessageThreads(account, subjects, thread, since);
+                }
             }
         }
 
@@ -77,12 +77,16 @@ public class ServiceSend extends ServiceBase implements SharedPreferences.OnShar
     private TwoStateOwner owner;
     private PowerManager.WakeLock wlOutbox;
     private List<Long> handling = new ArrayList<>();
+    private EmailService transport = null;
+    private EntityIdentity transportIdentity = null;
+    private long transportUsed = 0;
 
     private static ExecutorService executor = Helper.getBackgroundExecutor(1, "send");
 
     private static final int RETRY_MAX = 3;
     private static final int CONNECTIVITY_DELAY = 5000; // milliseconds
     private static final int PROGRESS_UPDATE_INTERVAL = 1000; // milliseconds
+    private static final long TRANSPORT_IDLE_TIMEOUT = 60 * 1000L; // milliseconds
 
     static final int PI_SEND = 1;
 
@@ -180,6 +184,14 @@ public class ServiceSend extends ServiceBase implements SharedPreferences.OnShar
         cm.unregisterNetworkCallback(networkCallback);
 
         getMainHandler().removeCallbacks(_checkConnectivity);
+        getMainHandler().removeCallbacks(_closeTransport);
+
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                closeTransport();
+            }
+        });
 
         owner.stop();
         handling.clear();
@@ -347,6 +359,55 @@ public class ServiceSend extends ServiceBase implements SharedPreferences.OnShar
         }
     };
 
+    private Runnable _closeTransport = new Runnable() {
+        @Override
+        public void run() {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    // The transport could have been reused after this was scheduled
+                    if (transport != null &&
+                            transportUsed + TRANSPORT_IDLE_TIMEOUT <= new Date().getTime()) {
+                        EntityLog.log(ServiceSend.this, "Send closing idle transport");
+                        closeTransport();
+                    }
+                }
+            });
+        }
+    };
+
+    private void closeTransport() {
+        if (transport == null)
+            return;
+        try {
+            transport.close();
+        } catch (Throwable ex) {
+            Log.w(ex);
+        } finally {
+            transport = null;
+            transportIdentity = null;
+        }
+    }
+
+    private static boolean isSameConnection(EntityIdentity i1, EntityIdentity i2) {
+        return (i1 != null && i2 != null &&
+                Objects.equals(i1.id, i2.id) &&
+                Objects.equals(i1.host, i2.host) &&
+                Objects.equals(i1.port, i2.port) &&
+                Objects.equals(i1.encryption, i2.encryption) &&
+                Objects.equals(i1.insecure, i2.insecure) &&
+                Objects.equals(i1.auth_type, i2.auth_type) &&
+                Objects.equals(i1.provider, i2.provider) &&
+                Objects.equals(i1.user, i2.user) &&
+                Objects.equals(i1.password, i2.password) &&
+                Objects.equals(i1.realm, i2.realm) &&
+                Objects.equals(i1.certificate_alias, i2.certificate_alias) &&
+                Objects.equals(i1.fingerprint, i2.fingerprint) &&
+                Objects.equals(i1.use_ip, i2.use_ip) &&
+                Objects.equals(i1.ehlo, i2.ehlo) &&
+                Objects.equals(i1.unicode, i2.unicode));
+    }
+
     private void processOperations(List<EntityOperation> ops) {
         try {
             wlOutbox.acquire();
@@ -413,7 +474,7 @@ public class ServiceSend extends ServiceBase implements SharedPreferences.OnShar
                         ops.remove(op);
                     } catch (Throwable ex) {
                         Log.e(outbox.name, ex);
-                        EntityLog.log(this, "Send " + Log.formatThrowable(ex, false));
+                        EntityLog.error(this, "Send " + Log.formatThrowable(ex, false));
 
                         boolean unrecoverable = (op.tries >= RETRY_MAX ||
                                 ex instanceof OutOfMemoryError ||
@@ -657,30 +718,53 @@ public class ServiceSend extends ServiceBase implements SharedPreferences.OnShar
             message.id = id;
         }
 
+        // Reuse transport of the previous message of the same identity
+        // unless the connection settings of the identity were changed meanwhile
+        getMainHandler().removeCallbacks(_closeTransport);
+        EmailService iservice = null;
+        if (transport != null &&
+                isSameConnection(transportIdentity, ident) &&
+                transport.isOpen())
+            iservice = transport;
+        else
+            closeTransport();
+        transport = null;
+        transportIdentity = null;
+
+        boolean reuse = (iservice != null);
+        if (!reuse) {
+            iservice = new EmailService(
+                    this, ident.getProtocol(), ident.realm, ident.encryption, ident.insecure, debug);
+            iservice.setUseIp(ident.use_ip, ident.ehlo);
+            iservice.setUnicode(ident.unicode);
+            iservice.setUseRset(true);
+        }
+
         // Create transport
         long start, end;
         Long max_size = null;
-        EmailService iservice = new EmailService(
-                this, ident.getProtocol(), ident.realm, ident.encryption, ident.insecure, debug);
         try {
-            iservice.setUseIp(ident.use_ip, ident.ehlo);
-            iservice.setUnicode(ident.unicode);
-
             // 0=Read receipt
             // 1=Delivery receipt
             // 2=Read+delivery receipt
 
+            String dsn = null;
             if (message.receipt_request != null && message.receipt_request) {
                 int receipt_type = prefs.getInt("receipt_type", 2);
                 if (receipt_type == 1 || receipt_type == 2) // Delivery receipt
-                    iservice.setDsnNotify("SUCCESS,FAILURE,DELAY");
+                    dsn = "SUCCESS,FAILURE,DELAY";
             }
+            iservice.setDsnNotify(dsn);
 
             // Connect transport
-            db.identity().setIdentityState(ident.id, "connecting");
-            iservice.connect(ident);
-            if (BuildConfig.DEBUG && false)
-                throw new IOException("Test");
+            if (reuse)
+                EntityLog.log(this, "Send reusing transport identity=" + ident.id);
+            else {
+                db.identity().setIdentityState(ident.id, "connecting");
+                iservice.connect(ident);
+                if (BuildConfig.DEBUG && false)
+                    throw new IOException("Test");
+            }
             db.identity().setIdentityState(ident.id, "connected");
 
             if (ident.max_size == null)
@@ -743,6 +827,9 @@ public class ServiceSend extends ServiceBase implements SharedPreferences.OnShar
             iservice.getTransport().sendMessage(imessage, recipients.toArray(new Address[0]));
             end = new Date().getTime();
             EntityLog.log(this, "Sent " + via + " elapse=" + (end - start) + " ms");
+
+            transport = iservice;
+            transportIdentity = ident;
         } catch (MessagingException ex) {
             iservice.dump(ident.email);
             Log.e(ex);
@@ -769,7 +856,12 @@ public class ServiceSend extends ServiceBase implements SharedPreferences.OnShar
             iservice.dump(ident.email);
             throw ex;
         } finally {
-            iservice.close();
+            if (transport == iservice) {
+                transportUsed = new Date().getTime();
+                getMainHandler().postDelayed(_closeTransport, TRANSPORT_IDLE_TIMEOUT);
+            }
+            else
+                iservice.close();
             if (lastProgress >= 0) {
                 lastProgress = -1;
                 nm.notify(NotificationHelper.NOTIFICATION_SEND, getNotificationService(false));
@@ -271,7 +271,8 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                     boolean event = false;
                     boolean runService = false;
                     for (TupleAccountNetworkState current : accountNetworkStates) {
-                        Log.d("### evaluating " + current);
+                        if (Log.isDebugEnabled())
+                            Log.d("### evaluating " + current);
                         if (!initialized.contains(current.accountState.id)) {
                             initialized.add(current.accountState.id);
                             init(current);
@@ -1765,7 +1766,7 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                                         Thread.sleep(FETCH_YIELD_DURATION);
                                     } catch (Throwable ex) {
                                         Log.e(folder.name, ex);
-                                        EntityLog.log(ServiceSynchronize.this, EntityLog.Type.Account, folder,
+                                        EntityLog.error(ServiceSynchronize.this, EntityLog.Type.Account, folder,
                                                 account.name + "/" + folder.name + " added " + Log.formatThrowable(ex, false));
                                         EntityOperation.sync(ServiceSynchronize.this, folder.id, false);
                                     } finally {
@@ -1781,7 +1782,7 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                                         Thread.sleep(FETCH_YIELD_DURATION);
                                     } catch (Throwable ex) {
                                         Log.e(folder.name, ex);
-                                        EntityLog.log(ServiceSynchronize.this, EntityLog.Type.Account, folder,
+                                        EntityLog.error(ServiceSynchronize.this, EntityLog.Type.Account, folder,
                                                 account.name + "/" + folder.name + " removed " + Log.formatThrowable(ex, false));
                                         EntityOperation.sync(ServiceSynchronize.this, folder.id, false);
                                     } finally {
@@ -1803,7 +1804,7 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                                         Thread.sleep(FETCH_YIELD_DURATION);
                                     } catch (Throwable ex) {
                                         Log.e(folder.name, ex);
-                                        EntityLog.log(ServiceSynchronize.this, EntityLog.Type.Account, folder,
+                                        EntityLog.error(ServiceSynchronize.this, EntityLog.Type.Account, folder,
                                                 account.name + "/" + folder.name + " changed " + Log.formatThrowable(ex, false));
                                         EntityOperation.sync(ServiceSynchronize.this, folder.id, false);
                                     } finally {
@@ -1825,7 +1826,7 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                                         }
                                     } catch (Throwable ex) {
                                         Log.e(folder.name, ex);
-                                        EntityLog.log(ServiceSynchronize.this, EntityLog.Type.Account, folder,
+                                        EntityLog.error(ServiceSynchronize.this, EntityLog.Type.Account, folder,
                                                 account.name + "/" + folder.name + " idle " + Log.formatThrowable(ex, false));
                                         state.error(new FolderClosedException(ifolder, "IDLE", new Exception(ex)));
                                     } finally {
@@ -2107,7 +2108,7 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                                                                 Log.i(folder.name, ex);
                                                             else
                                                                 Log.e(folder.name, ex);
-                                                            EntityLog.log(ServiceSynchronize.this, EntityLog.Type.Account, folder,
+                                                            EntityLog.error(ServiceSynchronize.this, EntityLog.Type.Account, folder,
                                                                     account.name + "/" + folder.name + " process " + Log.formatThrowable(ex, false));
                                                             db.folder().setFolderError(folder.id, Log.formatThrowable(ex));
 
@@ -2573,7 +2574,8 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                 Log.w(ex);
             }
 
-        Log.i(folder.name + " messages " + reason + " uids=" + TextUtils.join(",", uids));
+        if (Log.isInfoEnabled())
+            Log.i(folder.name + " messages " + reason + " uids=" + TextUtils.join(",", uids));
 
         DB db = DB.getInstance(this);
         try {
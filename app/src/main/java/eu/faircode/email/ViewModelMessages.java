@@ -22,6 +22,7 @@ package eu.faircode.email;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Pair;
 
@@ -34,8 +35,10 @@ import androidx.lifecycle.LiveData;
 import androidx.lifecycle.Observer;
 import androidx.lifecycle.OnLifecycleEvent;
 import androidx.lifecycle.ViewModel;
+import androidx.paging.DataSource;
 import androidx.paging.LivePagedListBuilder;
 import androidx.paging.PagedList;
+import androidx.paging.PositionalDataSource;
 import androidx.preference.PreferenceManager;
 import androidx.room.paging.LimitOffsetDataSource;
 
@@ -77,6 +80,7 @@ public class ViewModelMessages extends ViewModel {
     private static final int SEARCH_PAGE_SIZE = 10;
     private static final int MAX_CACHED_ITEMS = LOCAL_PAGE_SIZE * 50;
     private static final int CHUNK_SIZE = 100;
+    private static final long COALESCE_WINDOW = 500L; // milliseconds
 
     Model getModel(
             final Context context, final LifecycleOwner owner,
@@ -119,21 +123,35 @@ public class ViewModelMessages extends ViewModel {
                             .setPageSize(LOCAL_PAGE_SIZE)
                             .setMaxSize(MAX_CACHED_ITEMS)
                             .build();
-                    builder = new LivePagedListBuilder<>(
-                            db.message().pagedUnified(
-                                    args.type,
-                                    args.threading,
-                                    args.group_category,
-                                    args.sort, args.ascending,
-                                    args.filter_seen,
-                                    args.filter_unflagged,
-                                    args.filter_unknown,
-                                    args.filter_snoozed,
-                                    args.filter_deleted,
-                                    args.filter_language,
-                                    false,
-                                    args.debug),
-                            configUnified);
+                    if (args.threading && !args.debug)
+                        builder = new LivePagedListBuilder<>(
+                                new CoalescingFactory(db.message().pagedUnifiedThreads(
+                                        args.type,
+                                        args.group_category,
+                                        args.sort, args.ascending,
+                                        args.filter_seen,
+                                        args.filter_unflagged,
+                                        args.filter_unknown,
+                                        args.filter_snoozed,
+                                        args.filter_deleted,
+                                        args.filter_language)),
+                                configUnified);
+                    else
+                        builder = new LivePagedListBuilder<>(
+                                new CoalescingFactory(db.message().pagedUnified(
+                                        args.type,
+                                        args.threading,
+                                        args.group_category,
+                                        args.sort, args.ascending,
+                                        args.filter_seen,
+                                        args.filter_unflagged,
+                                        args.filter_unknown,
+                                        args.filter_snoozed,
+                                        args.filter_deleted,
+                                        args.filter_language,
+                                        false,
+                                        args.debug)),
+                                configUnified);
                     break;
 
                 case FOLDER:
@@ -144,7 +162,7 @@ public class ViewModelMessages extends ViewModel {
                             .setMaxSize(MAX_CACHED_ITEMS)
                             .build();
                     builder = new LivePagedListBuilder<>(
-                            db.message().pagedFolder(
+                            new CoalescingFactory(db.message().pagedFolder(
                                     args.folder, args.threading,
                                     args.sort, args.ascending,
                                     args.filter_seen,
@@ -154,7 +172,7 @@ public class ViewModelMessages extends ViewModel {
                                     args.filter_deleted,
                                     args.filter_language,
                                     false,
-                                    args.debug),
+                                    args.debug)),
                             configFolder);
                     builder.setBoundaryCallback(boundary);
                     break;
@@ -164,12 +182,12 @@ public class ViewModelMessages extends ViewModel {
                             .setPageSize(THREAD_PAGE_SIZE)
                             .build();
                     builder = new LivePagedListBuilder<>(
-                            db.message().pagedThread(
+                            new CoalescingFactory(db.message().pagedThread(
                                     args.account, args.thread,
                                     args.threading ? null : args.id,
                                     args.filter_archive && args.threading,
                                     args.ascending,
-                                    args.debug),
+                                    args.debug)),
                             configThread);
                     break;
 
@@ -181,24 +199,24 @@ public class ViewModelMessages extends ViewModel {
                             .build();
                     if (args.folder < 0)
                         builder = new LivePagedListBuilder<>(
-                                db.message().pagedUnified(
+                                new CoalescingFactory(db.message().pagedUnified(
                                         null,
                                         args.threading, false,
                                         "time", false,
                                         false, false, false, false, false,
                                         null,
                                         true,
-                                        args.debug),
+                                        args.debug)),
                                 configSearch);
                     else
                         builder = new LivePagedListBuilder<>(
-                                db.message().pagedFolder(
+                                new CoalescingFactory(db.message().pagedFolder(
                                         args.folder, args.threading,
                                         "time", false,
                                         false, false, false, false, false,
                                         null,
                                         true,
-                                        args.debug),
+                                        args.debug)),
                                 configSearch);
                     builder.setBoundaryCallback(boundary);
                     break;
@@ -363,7 +381,7 @@ public class ViewModelMessages extends ViewModel {
                         if (plist == null)
                             return null;
 
-                        LimitOffsetDataSource<TupleMessageEx> ds = (LimitOffsetDataSource<TupleMessageEx>) plist.getDataSource();
+                        CoalescingDataSource ds = (CoalescingDataSource) plist.getDataSource();
                         int count = ds.countItems();
 
                         if (lpos >= 0) {
@@ -414,7 +432,7 @@ public class ViewModelMessages extends ViewModel {
 
                     private Pair<Long, Long> getPair(
                             PagedList<TupleMessageEx> plist,
-                            LimitOffsetDataSource<TupleMessageEx> ds,
+                            CoalescingDataSource ds,
                             int count, int pos) {
                         if (pos < plist.size())
                             plist.loadAround(pos);
@@ -461,7 +479,7 @@ public class ViewModelMessages extends ViewModel {
                 if (plist == null)
                     return ids;
 
-                LimitOffsetDataSource<TupleMessageEx> ds = (LimitOffsetDataSource<TupleMessageEx>) plist.getDataSource();
+                CoalescingDataSource ds = (CoalescingDataSource) plist.getDataSource();
                 int count = ds.countItems();
                 for (int i = 0; i < count && isAlive(); i += 100)
                     for (TupleMessageEx message : ds.loadRange(i, Math.min(100, count - i)))
@@ -495,6 +513,83 @@ public class ViewModelMessages extends ViewModel {
         }
     }
 
+    private static class CoalescingFactory extends DataSource.Factory<Integer, TupleMessageEx> {
+        private final DataSource.Factory<Integer, TupleMessageEx> factory;
+        private long last = 0;
+
+        CoalescingFactory(DataSource.Factory<Integer, TupleMessageEx> factory) {
+            this.factory = factory;
+        }
+
+        @NonNull
+        @Override
+        public DataSource<Integer, TupleMessageEx> create() {
+            final CoalescingDataSource ds = new CoalescingDataSource(
+                    (LimitOffsetDataSource<TupleMessageEx>) factory.create());
+
+            // Invalidations arriving within the window result in one query only
+            ds.source.addInvalidatedCallback(new DataSource.InvalidatedCallback() {
+                @Override
+                public void onInvalidated() {
+                    ApplicationEx.getMainHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            long wait = last + COALESCE_WINDOW - SystemClock.elapsedRealtime();
+                            if (wait > 0) {
+                                Log.i("Coalescing model invalidation wait=" + wait);
+                                ApplicationEx.getMainHandler().postDelayed(this, wait);
+                            } else {
+                                last = SystemClock.elapsedRealtime();
+                                ds.invalidate();
+                            }
+                        }
+                    });
+                }
+            });
+
+            return ds;
+        }
+    }
+
+    private static class CoalescingDataSource extends PositionalDataSource<TupleMessageEx> {
+        private final LimitOffsetDataSource<TupleMessageEx> source;
+
+        CoalescingDataSource(LimitOffsetDataSource<TupleMessageEx> source) {
+            this.source = source;
+        }
+
+        @Override
+        public boolean isInvalid() {
+            // Room refreshes the table versions synchronously here,
+            // so that no stale page is loaded while the invalidation is being coalesced
+            return (source.isInvalid() || super.isInvalid());
+        }
+
+        @Override
+        public void invalidate() {
+            source.invalidate();
+            super.invalidate();
+        }
+
+        int countItems() {
+            return source.countItems();
+        }
+
+        List<TupleMessageEx> loadRange(int startPosition, int loadCount) {
+            return source.loadRange(startPosition, loadCount);
+        }
+
+        @Override
+        public void loadInitial(@NonNull LoadInitialParams params, @NonNull LoadInitialCallback<TupleMessageEx> callback) {
+            source.loadInitial(params, callback);
+        }
+
+        @Override
+        public void loadRange(@NonNull LoadRangeParams params, @NonNull LoadRangeCallback<TupleMessageEx> callback) {
+            source.loadRange(params, callback);
+        }
+    }
+
     private class Args {
         private long account;
         private String type;
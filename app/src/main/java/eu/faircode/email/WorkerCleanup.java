@@ -158,7 +158,7 @@ public class WorkerCleanup extends Worker {
 
                 ServiceSynchronize.reschedule(context);
 
-                DnsBlockList.clearCache();
+                DnsBlockList.clearCache(context);
                 MessageClassifier.cleanup(context);
                 ContactInfo.clearCache(context);
 
@@ -205,6 +205,7 @@ public class WorkerCleanup extends Worker {
             File[] messages = new File(context.getFilesDir(), "messages").listFiles();
             File[] revision = new File(context.getFilesDir(), "revision").listFiles();
             File[] references = new File(context.getFilesDir(), "references").listFiles();
+            File[] texts = new File(context.getFilesDir(), "text").listFiles();
             File[] encryption = new File(context.getFilesDir(), "encryption").listFiles();
             File[] photos = new File(context.getFilesDir(), "photo").listFiles();
             File[] calendars = new File(context.getFilesDir(), "calendar").listFiles();
@@ -215,6 +216,8 @@ public class WorkerCleanup extends Worker {
                 files.addAll(Arrays.asList(revision));
             if (references != null)
                 files.addAll(Arrays.asList(references));
+            if (texts != null)
+                files.addAll(Arrays.asList(texts));
             if (encryption != null)
                 files.addAll(Arrays.asList(encryption));
             if (photos != null)
@@ -326,6 +329,12 @@ public class WorkerCleanup extends Worker {
             else
                 ContactInfo.cleanup(context);
 
+            // Cleanup remote images
+            if (manual)
+                ImageHelper.clearCache(context);
+            else
+                ImageHelper.cleanup(context);
+
             Log.i("Cleanup FTS=" + fts);
             if (fts) {
                 int deleted = 0;
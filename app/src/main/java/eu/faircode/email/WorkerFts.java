@@ -33,16 +33,27 @@ import androidx.work.WorkManager;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
-import java.io.File;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.requery.android.database.sqlite.SQLiteDatabase;
 
 public class WorkerFts extends Worker {
     private static final int INDEX_DELAY = 30; // seconds
     private static final int INDEX_BATCH_SIZE = 100;
+    private static final int INDEX_THREADS = 2;
+
+    private static final AtomicLong indexedCount = new AtomicLong();
+    private static final AtomicLong indexedTime = new AtomicLong();
+
+    private static final ExecutorService executor =
+            Helper.getBackgroundExecutor(INDEX_THREADS, "fts");
 
     public WorkerFts(@NonNull Context context, @NonNull WorkerParameters workerParams) {
         super(context, workerParams);
@@ -61,6 +72,7 @@ public class WorkerFts extends Worker {
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
             boolean checkpoints = prefs.getBoolean("sqlite_checkpoints", false);
 
+            long start = new Date().getTime();
             int indexed = 0;
             List<Long> ids = new ArrayList<>(INDEX_BATCH_SIZE);
             DB db = DB.getInstance(context);
@@ -68,51 +80,29 @@ public class WorkerFts extends Worker {
             SQLiteDatabase sdb = FtsDbHelper.getInstance(context);
 
             try (Cursor cursor = db.message().getMessageFts()) {
-                while (cursor != null && cursor.moveToNext())
-                    try {
-                        long id = cursor.getLong(0);
-                        Log.i("FTS index=" + id);
-
-                        ids.add(id);
-
-                        EntityMessage message = db.message().getMessage(id);
-                        if (message == null) {
-                            Log.i("FTS gone");
-                            continue;
-                        }
-
-                        File file = message.getFile(context);
-                        String text = HtmlHelper.getFullText(file);
-                        if (text == null)
-                            text = "";
-
-                        boolean fts = prefs.getBoolean("fts", false);
-                        if (!fts)
+                while (cursor != null && cursor.moveToNext()) {
+                    ids.add(cursor.getLong(0));
+                    if (ids.size() >= INDEX_BATCH_SIZE) {
+                        int count = index(context, db, sdb, ids);
+                        if (count < 0)
                             break;
-
-                        try {
-                            sdb.beginTransaction();
-                            FtsDbHelper.insert(sdb, message, text);
-                            sdb.setTransactionSuccessful();
-                        } finally {
-                            sdb.endTransaction();
-                        }
-
-                        indexed++;
-
-                        if (ids.size() >= INDEX_BATCH_SIZE)
-                            markIndexed(db, ids);
-                    } catch (Throwable ex) {
-                        Log.e(ex);
+                        indexed += count;
                     }
+                }
             }
 
-            markIndexed(db, ids);
+            if (ids.size() > 0) {
+                int count = index(context, db, sdb, ids);
+                if (count > 0)
+                    indexed += count;
+            }
 
             if (checkpoints)
                 DB.checkpoint(context);
 
-            Log.i("FTS indexed=" + indexed);
+            long elapsed = new Date().getTime() - start;
+            Log.i("FTS indexed=" + indexed + " elapsed=" + elapsed +
+                    " rate=" + (elapsed == 0 ? 0 : indexed * 1000L / elapsed) + "/s");
             return Result.success();
         } catch (Throwable ex) {
             Log.e(ex);
@@ -120,7 +110,97 @@ public class WorkerFts extends Worker {
         }
     }
 
-    private void markIndexed(DB db, List<Long> ids) {
+    private static int index(Context context, DB db, SQLiteDatabase sdb, List<Long> ids) {
+        long start = new Date().getTime();
+        Log.i("FTS index batch=" + ids.size());
+
+        int indexed = 0;
+        boolean loaded = false;
+        List<EntityMessage> messages = new ArrayList<>();
+        List<String> texts = new ArrayList<>();
+        List<Long> done = new ArrayList<>();
+        try {
+            // Extract texts in parallel
+            List<Future<String>> futures = new ArrayList<>();
+            for (final EntityMessage message : db.message().getMessages(ids)) {
+                messages.add(message);
+                futures.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        String text = HtmlHelper.getFullText(context, message.id);
+                        return (text == null ? "" : text);
+                    }
+                }));
+            }
+            loaded = true;
+
+            for (int i = 0; i < futures.size(); i++)
+                try {
+                    texts.add(futures.get(i).get());
+                } catch (Throwable ex) {
+                    Log.e(ex);
+                    texts.add(null);
+                }
+
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            boolean fts = prefs.getBoolean("fts", false);
+            if (!fts) {
+                ids.clear();
+                return -1;
+            }
+
+            try {
+                sdb.beginTransaction();
+                FtsDbHelper.insert(sdb, messages, texts);
+                sdb.setTransactionSuccessful();
+            } finally {
+                sdb.endTransaction();
+            }
+
+            // Including messages which are gone or of which the text could not be extracted
+            done.addAll(ids);
+            for (String text : texts)
+                if (text != null)
+                    indexed++;
+        } catch (Throwable ex) {
+            Log.e(ex);
+
+            // Retry one message at a time, so that a bad message doesn't affect other messages
+            for (int i = 0; i < texts.size(); i++) {
+                EntityMessage message = messages.get(i);
+                String text = texts.get(i);
+                if (text != null)
+                    try {
+                        sdb.beginTransaction();
+                        FtsDbHelper.insert(sdb, message, text);
+                        sdb.setTransactionSuccessful();
+                        indexed++;
+                    } catch (Throwable exex) {
+                        Log.e(exex);
+                    } finally {
+                        sdb.endTransaction();
+                    }
+                done.add(message.id);
+            }
+
+            // Messages which are gone
+            if (loaded && texts.size() == messages.size())
+                for (Long id : ids)
+                    if (!done.contains(id))
+                        done.add(id);
+        }
+
+        markIndexed(db, done);
+        ids.clear();
+
+        long elapsed = new Date().getTime() - start;
+        indexedCount.addAndGet(indexed);
+        indexedTime.addAndGet(elapsed);
+
+        return indexed;
+    }
+
+    private static void markIndexed(DB db, List<Long> ids) {
         try {
             db.beginTransaction();
             for (Long id : ids)
@@ -129,7 +209,12 @@ public class WorkerFts extends Worker {
         } finally {
             db.endTransaction();
         }
-        ids.clear();
+    }
+
+    static long[] getStats() {
+        long count = indexedCount.get();
+        long time = indexedTime.get();
+        return new long[]{count, time, time == 0 ? 0 : count * 1000L / time};
     }
 
     static void init(Context context, boolean immediately) {